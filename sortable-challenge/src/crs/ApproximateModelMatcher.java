@@ -0,0 +1,297 @@
+package crs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate model number matching for one manufacturer's products, for decorated and split model numbers
+ * ("dscw310b" and "dsc w310" for "dscw310", "slta33l" for "slt a33") without expanding the model variants up front.
+ * Every run of title words (joined without spaces) is compared with the canonical models (cleaned, spaces removed)
+ * by edit distance, computed with Myers' bit-parallel algorithm (one long per model, so models up to 64 characters).
+ * Candidates are the models starting with the run's first character, filtered by length and by shared bigrams before
+ * the distance is computed (q-gram lemma: k extra characters break at most k of the model's bigrams, compared through a 64 bit
+ * signature of the run's bigrams).
+ * On this catalog almost every other kind of edit names a different model, so a match must also keep the model's structure:
+ * the same digit groups ("d5m2" is not "d52m"), the model's letters up to its first digit at the start ("jz300" is not "z300",
+ * "exzs5" is not "exs5"), and only extra characters (the distance equals the length difference): a changed letter is a different
+ * series ("pl80" and "cl80", "markiii" and "markiv"), a missing one often a different model ("d300" and "d300s").
+ */
+public class ApproximateModelMatcher {
+
+	/** Longest model that fits the bit vectors. */
+	private static final int MAX_MODEL_LENGTH = 64;
+
+	/** Shortest model matched approximately, shorter models are too close to each other and only match exactly (to spot ambiguous titles). */
+	private static final int MIN_MODEL_LENGTH = 4;
+
+	/** Models at least this long may be 2 edits away, shorter ones 1. */
+	private static final int LONG_MODEL_LENGTH = 7;
+
+	/** Canonical model, its product names and its bit masks. */
+	private static class Model {
+		final String canonical;
+		final String digits;
+		
+		/** Model up to its first digit. */
+		final String head;
+
+		/** Signature bits of the model's bigrams, in order. */
+		final int[] bigrams;
+		final List<String> productNames;
+
+		/** Distinct characters of the model and the positions they are at (Myers' Peq). */
+		final char[] characters;
+		final long[] masks;
+
+		Model(String canonical, List<String> productNames) {
+			this.canonical = canonical;
+			this.digits = digits(canonical);
+			int firstDigit = 0;
+			while(firstDigit < canonical.length() - 1 && !Character.isDigit(canonical.charAt(firstDigit))) {
+				++firstDigit;
+			}
+			this.head = canonical.substring(0, firstDigit + 1);
+			this.bigrams = new int[canonical.length() - 1];
+			for(int i = 0; i < this.bigrams.length; ++i) {
+				this.bigrams[i] = bigramBit(canonical.charAt(i), canonical.charAt(i + 1));
+			}
+			this.productNames = productNames;
+
+			StringBuilder characters = new StringBuilder();
+			List<Long> masks = new ArrayList<Long>();
+			for(int i = 0; i < canonical.length(); ++i) {
+				char c = canonical.charAt(i);
+				int index = characters.indexOf(String.valueOf(c));
+				if(index < 0) {
+					index = characters.length();
+					characters.append(c);
+					masks.add(0L);
+				}
+				masks.set(index, masks.get(index) | (1L << i));
+			}
+			this.characters = characters.toString().toCharArray();
+			this.masks = new long[masks.size()];
+			for(int i = 0; i < this.masks.length; ++i) {
+				this.masks[i] = masks.get(i);
+			}
+		}
+
+		long getMask(char c) {
+			for(int i = 0; i < this.characters.length; ++i) {
+				if(this.characters[i] == c) {
+					return this.masks[i];
+				}
+			}
+			return 0;
+		}
+
+		/** Most edits allowed for a match. */
+		int getMaxDistance() {
+			if(this.canonical.length() < MIN_MODEL_LENGTH) {
+				return 0;
+			}
+			return this.canonical.length() >= LONG_MODEL_LENGTH ? 2 : 1;
+		}
+	}
+
+	/** Result of a lookup: the product name, and the edit distance and model length it was found at. */
+	public static class Match {
+		public final String productName;
+		public final int distance;
+		public final int length;
+
+		Match(String productName, int distance, int length) {
+			this.productName = productName;
+			this.distance = distance;
+			this.length = length;
+		}
+	}
+
+	/** Models by their first character (a match starts with the model's head). */
+	private final Map<Character, Model[]> modelsByFirst = new HashMap<Character, Model[]>();
+	private int modelCount;
+
+	/** Shortest and longest model. */
+	private int minLength = Integer.MAX_VALUE;
+	private int maxLength;
+
+	/** Most title words joined into one run. */
+	private final int maxRunWords;
+
+	/** Construct the matcher over the canonical models and their product names, title runs of up to maxRunWords words are tried. */
+	public ApproximateModelMatcher(Map<String, List<String>> canonicalModels, int maxRunWords) {
+		this.maxRunWords = maxRunWords;
+
+		Map<Character, List<Model>> modelsByFirst = new HashMap<Character, List<Model>>();
+		for(Map.Entry<String, List<String>> entry : canonicalModels.entrySet()) {
+			String canonical = entry.getKey();
+			if(canonical.length() > MAX_MODEL_LENGTH) {
+				continue;
+			}
+			List<Model> models = modelsByFirst.get(canonical.charAt(0));
+			if(models == null) {
+				models = new ArrayList<Model>();
+				modelsByFirst.put(canonical.charAt(0), models);
+			}
+			models.add(new Model(canonical, entry.getValue()));
+			this.modelCount += 1;
+			this.minLength = Math.min(this.minLength, canonical.length());
+			this.maxLength = Math.max(this.maxLength, canonical.length());
+		}
+		for(Map.Entry<Character, List<Model>> entry : modelsByFirst.entrySet()) {
+			this.modelsByFirst.put(entry.getKey(), entry.getValue().toArray(new Model[entry.getValue().size()]));
+		}
+	}
+
+	/** Number of models. */
+	public int getModelCount() {
+		return this.modelCount;
+	}
+
+	/**
+	 * Find the product whose model is closest to a run of title words, within its edit distance bound.
+	 * Returns null if none is close enough, or if different products are equally close (ambiguous).
+	 */
+	public Match lookup(String title) {
+		if(this.modelCount == 0) {
+			return null;
+		}
+		List<String> words = Challenge.split(title);
+
+		String bestProductName = null;
+		int bestDistance = Integer.MAX_VALUE;
+		int bestLength = 0;
+		boolean ambiguous = false;
+		for(int first = 0; first < words.size(); ++first) {
+			Model[] models = this.modelsByFirst.get(words.get(first).charAt(0));
+			if(models == null) {
+				continue;
+			}
+			StringBuilder run = new StringBuilder();
+			for(int last = first; last < words.size() && last - first < this.maxRunWords; ++last) {
+				run.append(words.get(last));
+				if(run.length() > this.maxLength + 2) {
+					break;
+				}
+				if(run.length() < this.minLength) {
+					continue;
+				}
+				String token = run.toString();
+				long tokenBigrams = bigramSignature(token);
+				String tokenDigits = null;
+
+				for(Model model : models) {
+					int maxDistance = model.getMaxDistance();
+					int extra = token.length() - model.canonical.length();
+					if(extra < 0 || extra > maxDistance || !token.startsWith(model.head)) {
+						continue;
+					}
+					// every extra character breaks at most one of the model's bigrams
+					if(sharedBigrams(model, tokenBigrams) < model.bigrams.length - maxDistance) {
+						continue;
+					}
+					if(tokenDigits == null) {
+						tokenDigits = digits(token);
+					}
+					if(!model.digits.equals(tokenDigits)) {
+						continue;
+					}
+
+					int distance = distance(model, token);
+					if(distance != extra || distance > bestDistance) {
+						continue;
+					}
+					for(String productName : model.productNames) {
+						if(distance < bestDistance) {
+							bestDistance = distance;
+							bestProductName = productName;
+							bestLength = model.canonical.length();
+							ambiguous = false;
+						} else if(!productName.equals(bestProductName)) {
+							ambiguous = true;
+						}
+					}
+				}
+			}
+		}
+		if(bestProductName == null || ambiguous) {
+			return null;
+		}
+		return new Match(bestProductName, bestDistance, bestLength);
+	}
+
+	/**
+	 * Edit distance between the model and the text, Myers' bit-parallel algorithm in its global form (Hyyro):
+	 * the bit vectors hold the vertical deltas of a column of the dynamic programming matrix, a text character at a time.
+	 */
+	private static int distance(Model model, String text) {
+		int length = model.canonical.length();
+		long last = 1L << (length - 1);
+		long positive = length == 64 ? -1L : (1L << length) - 1;
+		long negative = 0;
+		int score = length;
+
+		for(int j = 0; j < text.length(); ++j) {
+			long equal = model.getMask(text.charAt(j));
+			long vertical = equal | negative;
+			long horizontal = (((equal & positive) + positive) ^ positive) | equal;
+			long horizontalPositive = negative | ~(horizontal | positive);
+			long horizontalNegative = positive & horizontal;
+			if((horizontalPositive & last) != 0) {
+				score += 1;
+			} else if((horizontalNegative & last) != 0) {
+				score -= 1;
+			}
+			// the first row counts up by one per text character
+			horizontalPositive = (horizontalPositive << 1) | 1;
+			horizontalNegative = horizontalNegative << 1;
+			positive = horizontalNegative | ~(vertical | horizontalPositive);
+			negative = horizontalPositive & vertical;
+		}
+		return score;
+	}
+
+	/** Bit of a bigram in a 64 bit signature, different bigrams may share a bit. */
+	private static int bigramBit(char first, char second) {
+		return (first * 31 + second) & 63;
+	}
+
+	/** Signature of the bigrams of the string, a bit set for each. */
+	private static long bigramSignature(String string) {
+		long signature = 0;
+		for(int i = 0; i + 1 < string.length(); ++i) {
+			signature |= 1L << bigramBit(string.charAt(i), string.charAt(i + 1));
+		}
+		return signature;
+	}
+
+	/** Number of the model's bigrams whose bit is in the signature, at least the number it shares with the signature's string. */
+	private static int sharedBigrams(Model model, long signature) {
+		int count = 0;
+		for(int bit : model.bigrams) {
+			if((signature & (1L << bit)) != 0) {
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	/** Digit groups of the string separated by spaces, "5 2" for "d5m2" (not the same model as "d52m"). */
+	private static String digits(String string) {
+		StringBuilder result = new StringBuilder();
+		boolean digit = false;
+		for(int i = 0; i < string.length(); ++i) {
+			char c = string.charAt(i);
+			if(Character.isDigit(c)) {
+				if(!digit && result.length() > 0) {
+					result.append(' ');
+				}
+				result.append(c);
+			}
+			digit = Character.isDigit(c);
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,314 @@
+package crs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Matching benchmarks, not part of the challenge run.
+ * Usage is: java -cp sortable-challenge.jar crs.Benchmark [--rounds=count] [product file] [listing file]
+ */
+public class Benchmark {
+
+	/** Benchmark Entry Point */
+	public static void main(String[] args) throws IOException {
+		Options options = new Options(args);
+		List<String> files = options.getArguments();
+		if(files.size() != 2) {
+			System.out.println("Usage is: java -cp sortable-challenge.jar crs.Benchmark [--rounds=count] [product file] [listing file]");
+			return;
+		}
+		int rounds = options.getInt("rounds", 5);
+
+		List<Product> products = Product.loadProducts(files.get(0));
+		List<Listing> listings = Listing.loadListings(files.get(1));
+
+		// clean up front, only the lookups are timed
+		String[] manufacturers = new String[listings.size()];
+		String[] titles = new String[listings.size()];
+		for(int i = 0; i < listings.size(); ++i) {
+			manufacturers[i] = Challenge.clean(listings.get(i).manufacturer);
+			titles[i] = Challenge.clean(listings.get(i).title);
+		}
+
+		benchmarkModelEngines(products, manufacturers, titles, rounds);
+		benchmarkCandidates(products, manufacturers, titles, rounds);
+		benchmarkSyntheticCandidates(rounds);
+		benchmarkGrouped(products, listings, rounds);
+	}
+
+	/** Time each model engine (with and without the exact model fast path and the prefilter) on one thread, and compare its answers with the reference. */
+	private static void benchmarkModelEngines(List<Product> products, String[] manufacturers, String[] titles, int rounds) {
+		System.out.println("Model engines, " + titles.length + " listings, best of " + rounds + " rounds:");
+
+		// reference settings first
+		List<MatchSettings> configurations = new ArrayList<MatchSettings>();
+		for(boolean prefilter : new boolean[] { false, true }) {
+			for(boolean fastPath : new boolean[] { false, true }) {
+				for(ModelEngine engine : ModelEngine.values()) {
+					for(boolean familyIndex : new boolean[] { false, true }) {
+						// the family index is only used by the keyword engine
+						if(familyIndex && engine != ModelEngine.KEYWORD) {
+							continue;
+						}
+						MatchSettings settings = new MatchSettings();
+						settings.modelEngine = engine;
+						settings.exactModelFastPath = fastPath;
+						settings.prefilter = prefilter;
+						settings.familyIndex = familyIndex;
+						configurations.add(settings);
+					}
+				}
+			}
+		}
+
+		// approximate model matching on top of the fast path, for each engine
+		for(ModelEngine engine : ModelEngine.values()) {
+			MatchSettings settings = new MatchSettings();
+			settings.modelEngine = engine;
+			settings.approximateModels = true;
+			configurations.add(settings);
+		}
+
+		// keyword lookup without the spacing variants, titles re-split through the trigram index (keyword engine only)
+		MatchSettings trigram = new MatchSettings();
+		trigram.trigramIndex = true;
+		configurations.add(trigram);
+
+		// corpus derived word weights, scoring every lookup so the weights matter: products only, and with the first listing titles
+		for(boolean sample : new boolean[] { false, true }) {
+			MatchSettings weights = new MatchSettings();
+			weights.exactModelFastPath = false;
+			weights.stopwordShare = WordWeights.DEFAULT_STOPWORD_SHARE;
+			if(sample) {
+				weights.weightSample = Arrays.asList(titles).subList(0, Math.min(titles.length, WordWeights.DEFAULT_SAMPLE_SIZE));
+			}
+			configurations.add(weights);
+		}
+
+		String[] reference = null;
+		for(MatchSettings settings : configurations) {
+			long buildStart = System.nanoTime();
+			ManufacturerLookup lookup = new ManufacturerLookup(products, settings);
+			long buildTime = System.nanoTime() - buildStart;
+
+			String[] results = new String[titles.length];
+			long best = Long.MAX_VALUE;
+			for(int round = 0; round < rounds; ++round) {
+				long start = System.nanoTime();
+				for(int i = 0; i < titles.length; ++i) {
+					results[i] = lookup.lookupProductName(manufacturers[i], titles[i]);
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+
+			int matched = 0;
+			int agreed = 0;
+			for(int i = 0; i < results.length; ++i) {
+				if(results[i] != null) {
+					matched += 1;
+				}
+				if(reference == null || (results[i] == null ? reference[i] == null : results[i].equals(reference[i]))) {
+					agreed += 1;
+				}
+			}
+			if(reference == null) {
+				reference = results;
+			}
+
+			String name = settings.modelEngine.name().toLowerCase() + settings.getOptionNames();
+			System.out.println(String.format("  %-32s build %6.1fms  lookups %7.1fms  %9.0f listings/s  matched %d  agrees with reference on %d (%.1f%%)",
+					name, buildTime / 1e6, best / 1e6, titles.length / (best / 1e9), matched, agreed, agreed * 100.0 / titles.length));
+		}
+	}
+
+	/** Recall targets tried for the LSH candidate stage. */
+	private static final float[] CANDIDATE_RECALLS = { 0.5f, 0.8f, 0.9f, 0.95f, 0.99f };
+
+	/**
+	 * Time the keyword engine's LSH candidate stage at each recall target against scoring every keyword (no fast path, so every
+	 * lookup is scored), with the share of the exact answers it still gives.
+	 */
+	private static void benchmarkCandidates(List<Product> products, String[] manufacturers, String[] titles, int rounds) {
+		System.out.println("LSH candidates, " + titles.length + " listings, best of " + rounds + " rounds:");
+
+		String[] exact = null;
+		for(int i = -1; i < CANDIDATE_RECALLS.length; ++i) {
+			MatchSettings settings = new MatchSettings();
+			settings.exactModelFastPath = false;
+			settings.candidateRecall = i < 0 ? 0 : CANDIDATE_RECALLS[i];
+			ManufacturerLookup lookup = new ManufacturerLookup(products, settings);
+
+			String[] results = new String[titles.length];
+			long best = Long.MAX_VALUE;
+			for(int round = 0; round < rounds; ++round) {
+				long start = System.nanoTime();
+				for(int j = 0; j < titles.length; ++j) {
+					results[j] = lookup.lookupProductName(manufacturers[j], titles[j]);
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			if(exact == null) {
+				exact = results;
+			}
+
+			String candidates = lookup.getCandidateLookups() == 0 ? "all" : String.format("%.1f", lookup.getCandidateKeywords() / (double)lookup.getCandidateLookups());
+			System.out.println(String.format("  recall %-6s lookups %7.1fms  candidate keywords per lookup %5s  %s",
+					i < 0 ? "exact" : String.valueOf(settings.candidateRecall), best / 1e6, candidates, compareAnswers(exact, results)));
+		}
+	}
+
+	/**
+	 * The candidate stage on a synthetic catalog of 20000 models sharing one common word (the fan out the stage is for):
+	 * model keywords are "[series] [number] digital" (half with "kit"), titles are a model's words, its series dropped
+	 * now and then, with noise words and another series mixed in.
+	 */
+	private static void benchmarkSyntheticCandidates(int rounds) {
+		int modelCount = 20000;
+		Random random = new Random(1);
+		List<String> keywords = new ArrayList<String>();
+		for(int i = 0; i < modelCount; ++i) {
+			keywords.add("s" + random.nextInt(500) + " n" + i + " digital" + (i % 2 == 0 ? " kit" : ""));
+		}
+		String[] noise = { "black", "zoom", "lcd", "kit", "digital", "12mp" };
+		String[] titles = new String[2000];
+		for(int i = 0; i < titles.length; ++i) {
+			List<String> words = Challenge.split(keywords.get(random.nextInt(modelCount)));
+			if(random.nextInt(10) < 3) {
+				words.remove(0);
+			}
+			for(int j = 0; j < 4; ++j) {
+				words.add(random.nextInt(words.size() + 1), noise[random.nextInt(noise.length)]);
+			}
+			if(random.nextBoolean()) {
+				words.add("s" + random.nextInt(500));
+			}
+			StringBuilder title = new StringBuilder();
+			for(String word : words) {
+				title.append(word).append(' ');
+			}
+			titles[i] = title.toString().trim();
+		}
+		System.out.println("LSH candidates, synthetic catalog of " + modelCount + " models, " + titles.length + " titles, best of " + rounds + " rounds:");
+
+		String[] exact = null;
+		for(int i = -1; i < CANDIDATE_RECALLS.length; ++i) {
+			KeywordLookup lookup = new KeywordLookup(keywords, Challenge.MODEL_MATCH_DELTA);
+			if(i >= 0) {
+				lookup.setCandidateRecall(CANDIDATE_RECALLS[i]);
+			}
+			// the first lookup compiles the index
+			long buildStart = System.nanoTime();
+			lookup.lookup("");
+			long buildTime = System.nanoTime() - buildStart;
+
+			String[] results = new String[titles.length];
+			long best = Long.MAX_VALUE;
+			for(int round = 0; round < rounds; ++round) {
+				long start = System.nanoTime();
+				for(int j = 0; j < titles.length; ++j) {
+					results[j] = lookup.lookup(titles[j]);
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			if(exact == null) {
+				exact = results;
+			}
+
+			String candidates = lookup.getCandidateLookups() == 0 ? "all" : String.format("%.1f", lookup.getCandidateKeywords() / (double)lookup.getCandidateLookups());
+			System.out.println(String.format("  recall %-6s build %6.1fms  lookups %7.1fms  candidate keywords per lookup %5s  %s",
+					i < 0 ? "exact" : String.valueOf(CANDIDATE_RECALLS[i]), buildTime / 1e6, best / 1e6, candidates, compareAnswers(exact, results)));
+		}
+	}
+
+	/** Share of the exact answers a run gives (its recall), and the answers it gives that the exact run does not. */
+	private static String compareAnswers(String[] exact, String[] results) {
+		int answers = 0;
+		int found = 0;
+		int other = 0;
+		for(int i = 0; i < results.length; ++i) {
+			if(exact[i] != null) {
+				answers += 1;
+				if(exact[i].equals(results[i])) {
+					found += 1;
+				}
+			}
+			if(results[i] != null && !results[i].equals(exact[i])) {
+				other += 1;
+			}
+		}
+		return String.format("exact answers found %d of %d (%.1f%%)  other answers %d", found, answers, found * 100.0 / Math.max(1, answers), other);
+	}
+
+	/** Time one listing at a time (crawl order) against the grouped two phase match, on 1 and Challenge.THREADS threads. */
+	private static void benchmarkGrouped(List<Product> products, List<Listing> listings, int rounds) {
+		System.out.println("Grouped matching, " + listings.size() + " listings, best of " + rounds + " rounds:");
+
+		ManufacturerLookup lookup = new ManufacturerLookup(products);
+		for(int threads : new int[] { 1, Challenge.THREADS }) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				GroupedMatcher grouped = new GroupedMatcher(lookup, pool);
+				MatchResult[] single = new MatchResult[listings.size()];
+				MatchResult[] results = null;
+				long bestSingle = Long.MAX_VALUE;
+				long bestGrouped = Long.MAX_VALUE;
+				for(int round = 0; round < rounds; ++round) {
+					long start = System.nanoTime();
+					pool.invoke(new SingleTask(lookup, listings, single, 0, listings.size()));
+					bestSingle = Math.min(bestSingle, System.nanoTime() - start);
+
+					start = System.nanoTime();
+					results = grouped.match(listings);
+					bestGrouped = Math.min(bestGrouped, System.nanoTime() - start);
+				}
+
+				int agreed = 0;
+				for(int i = 0; i < results.length; ++i) {
+					if(results[i].name == null ? single[i].name == null : results[i].name.equals(single[i].name)) {
+						agreed += 1;
+					}
+				}
+				System.out.println(String.format("  %d threads: one at a time %7.1fms  grouped %7.1fms  (%.2fx)  agree on %d of %d",
+						threads, bestSingle / 1e6, bestGrouped / 1e6, bestSingle / (double)bestGrouped, agreed, results.length));
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/** One listing at a time in input order, split over the pool. */
+	private static class SingleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ManufacturerLookup lookup;
+		private final List<Listing> listings;
+		private final MatchResult[] results;
+		private final int start;
+		private final int end;
+
+		SingleTask(ManufacturerLookup lookup, List<Listing> listings, MatchResult[] results, int start, int end) {
+			this.lookup = lookup;
+			this.listings = listings;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if(this.end - this.start <= 256) {
+				for(int i = this.start; i < this.end; ++i) {
+					this.results[i] = this.lookup.match(this.listings.get(i));
+				}
+				return;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new SingleTask(this.lookup, this.listings, this.results, this.start, middle),
+					new SingleTask(this.lookup, this.listings, this.results, middle, this.end));
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package crs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Block pipeline shared by the line readers and matchers: lines are read in blocks, each block is handed to a task on the thread pool
+ * and the results are collected in input order. At most MAX_PENDING_BLOCKS blocks are read ahead of the one being collected.
+ */
+public abstract class BlockPipeline<R> {
+
+	/** Default number of lines handed to a thread at once. */
+	public static final int BLOCK_SIZE = 1024;
+
+	/** Maximum number of blocks waiting to be collected, bounds the memory used by read ahead. */
+	private static final int MAX_PENDING_BLOCKS = Challenge.THREADS * 4;
+
+	/** Number of lines in a block. */
+	private final int blockSize;
+
+	/** What the tasks do, for the error messages ("match", "parse"). */
+	private final String action;
+
+	/** Stop at a line cut off by the end of the input instead of handing it on (the file is still being written). */
+	private boolean completeLinesOnly;
+
+	/** Construct the pipeline. */
+	public BlockPipeline(int blockSize, String action) {
+		this.blockSize = blockSize;
+		this.action = action;
+	}
+
+	public void setCompleteLinesOnly(boolean completeLinesOnly) {
+		this.completeLinesOnly = completeLinesOnly;
+	}
+
+	/** Task processing one block, line numbers start at 1. */
+	protected abstract Callable<R> createTask(List<String> lines, long firstLineNumber);
+
+	/** Receives each block's result in input order, with the byte offset and line number of the block's last line. */
+	protected abstract void collect(R result, long endOffset, long endLineNumber) throws IOException;
+
+	/**
+	 * Read the lines up to the end of the input, lineNumber is the number of lines before the reader's position.
+	 * Returns the line number of the last line handed on. Tasks not collected (after a failure) are cancelled.
+	 */
+	public long run(LineReader reader, long lineNumber, ExecutorService executor) throws IOException {
+		LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+		try {
+			List<String> block = new ArrayList<String>(this.blockSize);
+			long blockEnd = reader.getOffset();
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if(this.completeLinesOnly && !reader.isLineComplete()) {
+					break;
+				}
+				lineNumber += 1;
+				block.add(line);
+				blockEnd = reader.getOffset();
+
+				if(block.size() == this.blockSize) {
+					pending.add(submit(executor, block, lineNumber, blockEnd));
+					block = new ArrayList<String>(this.blockSize);
+
+					// collect finished blocks in input order, also stops the reader getting too far ahead
+					while(pending.size() > MAX_PENDING_BLOCKS) {
+						collect(pending.removeFirst());
+					}
+				}
+			}
+
+			// last partial block
+			if(!block.isEmpty()) {
+				pending.add(submit(executor, block, lineNumber, blockEnd));
+			}
+			while(!pending.isEmpty()) {
+				collect(pending.removeFirst());
+			}
+		} finally {
+			for(PendingBlock block : pending) {
+				block.future.cancel(true);
+			}
+		}
+		return lineNumber;
+	}
+
+	private PendingBlock submit(ExecutorService executor, List<String> block, long lineNumber, long endOffset) {
+		return new PendingBlock(executor.submit(createTask(block, lineNumber - block.size() + 1)), endOffset, lineNumber);
+	}
+
+	/** Wait for a block and hand its result over. */
+	private void collect(PendingBlock block) throws IOException {
+		R result;
+		try {
+			result = getResult(block.future, this.action);
+		} catch (InterruptedException exception) {
+			throw new IOException("Interrupted while waiting to " + this.action, exception);
+		}
+		collect(result, block.endOffset, block.endLineNumber);
+	}
+
+	/** Wait for a task's result, its IOException is rethrown and any other failure becomes an IOException "Failed to [action]". */
+	public static <T> T getResult(Future<T> future, String action) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException exception) {
+			if(exception.getCause() instanceof IOException) {
+				throw (IOException)exception.getCause();
+			}
+			throw new IOException("Failed to " + action + ": " + exception.getCause().getMessage(), exception.getCause());
+		}
+	}
+
+	/** Submitted block and where it ends. */
+	private class PendingBlock {
+		final Future<R> future;
+		final long endOffset;
+		final long endLineNumber;
+
+		PendingBlock(Future<R> future, long endOffset, long endLineNumber) {
+			this.future = future;
+			this.endOffset = endOffset;
+			this.endLineNumber = endLineNumber;
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package crs;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class Challenge {
 	
@@ -17,6 +22,11 @@ public class Challenge {
 	/** Small words in the model will be handled with extra processing.*/
 	public static final int SMALL_WORD_SIZE = 3;
 	
+	/** Options of a run over a listings file, refused by filter mode. */
+	private static final List<String> FILE_RUN_OPTIONS = Arrays.asList("checkpoint", "checkpoint-interval", "resume", "compare", "compare-output", 
+			"listing-store", "listing-store-dir", "output-format", "follow", "poll-interval", "idle-exit", "index", "rematch", 
+			"result-memory", "spill-dir", "store", "shadow", "shadow-rate", "shadow-output", "grouped");
+	
 	/** Number of threads to use for matching. */
 	public static final int THREADS = 4;
 	
@@ -57,19 +67,158 @@ public class Challenge {
 	
 	/** Challenge Entry Point */
 	public static void main(String[] args) throws IOException {
-
-		// simple usage message
-		if(args.length != 3)
-		{
-			System.out.println("Usage is: java -jar sortable-challenge.jar [product file] [listing file] [output file]");
+		
+		Options options = new Options(args);
+		try {
+			run(options);
+		} catch (IllegalArgumentException exception) {
+			// bad option value
+			System.out.println(exception.getMessage());
+			printUsage();
+		}
+	}
+	
+	/** Simple usage message */
+	private static void printUsage() {
+		System.out.println("Usage is: java -jar sortable-challenge.jar [options] [product file] [listing file] [output file]");
+		System.out.println("Gzip input files are detected automatically, an output file ending in .gz is written compressed.");
+		System.out.println("Filter mode: java -jar sortable-challenge.jar --filter [options] [product file] < listings > matched listings");
+		System.out.println("Options:");
+		System.out.println("  --filter               match json listing lines from stdin, writing each with its product_name (or null) to stdout in input order");
+		System.out.println("  --lenient              skip malformed lines instead of failing, they are written to a quarantine file");
+		System.out.println("  --quarantine=<file>    quarantine file for --lenient (default is [output file].quarantine)");
+		System.out.println("  --max-errors=<count>   with --lenient, abort once more than this many lines are rejected (default no limit)");
+		System.out.println("  --checkpoint[=<file>]  save progress periodically (default file is [output file].checkpoint)");
+		System.out.println("  --checkpoint-interval=<lines>  listing lines between checkpoints (default " + Checkpoint.DEFAULT_INTERVAL + ")");
+		System.out.println("  --resume               continue from the last checkpoint, implies --checkpoint");
+		System.out.println("  --engine=<name>        matching engine: " + engineNames() + " (default reference)");
+		System.out.println("  --compare[=<name>]     also run this engine (default reference, or keyword when the engine is reference) and compare the two, no checkpoint support");
+		System.out.println("  --compare-output=<file>  listings the engines disagree on (default is [output file].diff)");
+		System.out.println("  --listing-store=<type> with --compare, where the listings are held: heap (default), direct (off heap) or mapped (scratch file)");
+		System.out.println("  --listing-store-dir=<dir>  directory for the mapped listing store's scratch file (default is the temporary directory)");
+		System.out.println("  --output-format=<format>  products (default, listings grouped by product when done) or listings (one line per listing as it is matched)");
+		System.out.println("  --follow               keep watching the listings file, matching lines as they are appended (uses the listings output format)");
+		System.out.println("  --poll-interval=<ms>   with --follow, time between file size checks (default " + FollowMatcher.DEFAULT_POLL_INTERVAL + ")");
+		System.out.println("  --idle-exit=<ms>       with --follow, stop after this long without new listings (default never)");
+		System.out.println("  --index[=<file>]       save a listing index for later incremental re-matching (default file is [output file].index)");
+		System.out.println("  --rematch              after a products file change, only re-match the listings the change can affect, using the index");
+		System.out.println("  --result-memory=<MB>   keep the matches within this much memory, spilling sorted runs to disk and merging them when saving");
+		System.out.println("  --spill-dir=<dir>      directory for the spilled runs (default is the temporary directory)");
+		System.out.println("  --store[=<base>]       also save a binary result store for per product queries with crs.ResultStore (default is [output file].store)");
+		System.out.println("  --shadow[=<name>]      also match a sample of the listings with this engine (as for --compare) in the background, dropped when it falls behind");
+		System.out.println("  --shadow-rate=<fraction>  fraction of the listings to shadow (default " + ShadowMatcher.DEFAULT_SAMPLE_RATE + ")");
+		System.out.println("  --shadow-output=<file> listings the shadow disagrees on (default is [output file].shadow)");
+		System.out.println("  --grouped              two phase matching: resolve the manufacturers of a block first, then match the models manufacturer by manufacturer");
+		System.out.println("  --family-index         score only the models of the family named in the title (PowerShot, Coolpix, ...), falling back to all the manufacturer's models");
+		System.out.println("  --approximate-models   match models with a few extra characters in the title (DSC-W350L for DSC-W350) before scoring");
+		System.out.println("  --trigram-index        keyword lookups without the bare models' spacing variants, titles are re-split to the models' spacing through a trigram index");
+		System.out.println("  --lsh-recall=<fraction>  score only the keywords found by a MinHash (LSH) candidate stage built for this recall, for very large catalogs");
+		System.out.println("  --word-weights[=<share>]  derive stopwords (in more than this share of the products or sample titles, default " + WordWeights.DEFAULT_STOPWORD_SHARE + ") and IDF weights of the model words");
+		System.out.println("  --weight-sample=<file> also count the titles of the first listings of this file for the word weights, implies --word-weights");
+		System.out.println("  --weight-sample-size=<lines>  listings read for the weight sample (default " + WordWeights.DEFAULT_SAMPLE_SIZE + ")");
+		System.out.println("  --fast-path            skip the scoring when the title has exactly one product's model verbatim and nothing else like a model or an accessory");
+		System.out.println("  --prefilter            skip accessories and listings without any model word before the lookup");
+		System.out.println("  --accessory-words=<file>  prefilter accessory signal words, one per line (implies --prefilter)");
+	}
+	
+	/** Match the listings file to the products and save the product listings file. */
+	static void run(Options options) throws IOException {
+		List<String> files = options.getArguments();
+		
+		if(options.has("filter")) {
+			if(files.size() != 1) {
+				printUsage();
+				return;
+			}
+			filter(options, files.get(0));
 			return;
 		}
 		
+		if(files.size() != 3) {
+			printUsage();
+			return;
+		}
+		
+		MatchSettings settings = MatchSettings.fromOptions(options);
+		MatcherEngine engine = MatcherEngine.parse(options.get("engine", MatcherEngine.REFERENCE.getName()));
+		MatcherEngine compareEngine = null;
+		if(options.has("compare")) {
+			compareEngine = MatcherEngine.parse(options.get("compare", getOtherEngine(engine).getName()));
+			if(compareEngine == engine) {
+				throw new IllegalArgumentException("Compare needs two different engines");
+			}
+			if(options.has("checkpoint") || options.has("resume")) {
+				throw new IllegalArgumentException("Compare does not support checkpoints");
+			}
+		}
+		ListingArena.Type arenaType = ListingArena.Type.parse(options.get("listing-store", ListingArena.Type.HEAP.getName()));
+		if((options.has("listing-store") || options.has("listing-store-dir")) && compareEngine == null) {
+			throw new IllegalArgumentException("The listing store is only used by compare");
+		}
+		boolean follow = options.has("follow");
+		if(follow && (options.has("checkpoint") || options.has("resume") || options.has("compare"))) {
+			throw new IllegalArgumentException("Follow mode keeps its own position, it does not support checkpoints or compare");
+		}
+		boolean listingOutput = false;
+		String outputFormat = options.get("output-format", follow ? "listings" : "products");
+		if(follow && !outputFormat.equals("listings")) {
+			throw new IllegalArgumentException("Follow mode only supports the listings output format");
+		}
+		if(outputFormat.equals("listings")) {
+			listingOutput = true;
+			if(options.has("checkpoint") || options.has("resume") || options.has("compare")) {
+				throw new IllegalArgumentException("The listings output format does not support checkpoints or compare");
+			}
+			if(options.has("store")) {
+				throw new IllegalArgumentException("The result store needs the products output format");
+			}
+		} else if(!outputFormat.equals("products")) {
+			throw new IllegalArgumentException("Unknown output format: " + outputFormat);
+		}
+		boolean rematch = options.has("rematch");
+		boolean saveIndex = options.has("index") || rematch;
+		if(saveIndex && (options.has("resume") || options.has("compare") || follow)) {
+			throw new IllegalArgumentException("The listing index needs a full run, it does not support resume, compare or follow");
+		}
+		// word weights come from all the products, so a change to one manufacturer's products can change every manufacturer's answers
+		if(rematch && (listingOutput || options.has("checkpoint") || settings.prefilter || settings.stopwordShare > 0)) {
+			throw new IllegalArgumentException("Rematch only supports the products output format, without checkpoints, the prefilter or word weights");
+		}
+		boolean collect = options.has("result-memory");
+		if(collect && (options.has("checkpoint") || options.has("resume") || options.has("compare") || rematch || listingOutput || options.has("store"))) {
+			throw new IllegalArgumentException("The result memory budget is for a full products format run, without checkpoints, compare, rematch or the result store");
+		}
+		MatcherEngine shadowEngine = null;
+		if(options.has("shadow")) {
+			shadowEngine = MatcherEngine.parse(options.get("shadow", getOtherEngine(engine).getName()));
+		}
+		if(!engine.takesSettings() && (compareEngine == null || !compareEngine.takesSettings()) && (shadowEngine == null || !shadowEngine.takesSettings())) {
+			checkNoSettings(settings);
+		}
+		boolean grouped = options.has("grouped");
+		if(grouped && (options.has("compare") || follow || rematch || options.has("shadow"))) {
+			throw new IllegalArgumentException("Grouped matching is for the streaming run, it does not support compare, follow, rematch or the shadow");
+		}
+		
 		long startTime = System.currentTimeMillis();
 		
+		// lenient loading quarantines bad lines instead of failing on the first one
+		Quarantine quarantine = null;
+		if(options.has("lenient")) {
+			quarantine = new Quarantine(options.get("quarantine", files.get(2) + ".quarantine"), options.getInt("max-errors", Quarantine.UNLIMITED), options.has("resume"));
+		}
+		
 		// load products and setup lookups
-		List<Product> products = Product.loadProducts(args[0]);
-		ManufacturerLookup manufacturerLookup = new ManufacturerLookup(products);
+		List<Product> products;
+		try {
+			products = Product.loadProducts(files.get(0), quarantine);
+		} catch (IOException exception) {
+			closeQuarantine(quarantine);
+			throw exception;
+		}
+		long buildStart = System.nanoTime();
+		ProductMatcher matcher = engine.create(products, settings);
+		long buildTime = System.nanoTime() - buildStart;
 		
 		// map to store matching results and link them to products
 		Map<String, Product> productMap = new LinkedHashMap<String, Product>();
@@ -77,17 +226,267 @@ public class Challenge {
 			productMap.put(product.product_name, product);
 		}
 		
-		// load and process listings
-		List<Listing> listings = Listing.loadListings(args[1]);
-		Listing.matchListings(listings, productMap, manufacturerLookup);
+		// run both engines over the same listings
+		if(compareEngine != null) {
+			try {
+				compare(files, options, products, settings, engine, matcher, buildTime, compareEngine, arenaType, productMap, quarantine);
+			} finally {
+				closeQuarantine(quarantine);
+			}
+			saveOutput(files, options, productMap);
+			System.out.println("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+			return;
+		}
+		
+		// shadow engine alongside the real one
+		ShadowMatcher shadowMatcher = null;
+		if(shadowEngine != null) {
+			shadowMatcher = new ShadowMatcher(engine.getName(), matcher, shadowEngine.getName(), shadowEngine.create(products, settings), 
+					options.getDouble("shadow-rate", ShadowMatcher.DEFAULT_SAMPLE_RATE), options.get("shadow-output", files.get(2) + ".shadow"));
+			matcher = shadowMatcher;
+		}
+		
+		// match appended listings until stopped
+		if(follow) {
+			FollowMatcher followMatcher = new FollowMatcher(matcher, engine.getName() + settings.getOptionNames(), ListingIndex.fingerprint(products), 
+					options.getInt("poll-interval", FollowMatcher.DEFAULT_POLL_INTERVAL), options.getInt("idle-exit", 0));
+			followMatcher.setQuarantine(quarantine);
+			try {
+				followMatcher.follow(files.get(1), files.get(2));
+			} finally {
+				closeQuarantine(quarantine);
+				if(shadowMatcher != null) {
+					shadowMatcher.close();
+				}
+			}
+			matcher.report();
+			System.out.println("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+			return;
+		}
+		
+		// listing index of this run, and re-match from the previous one
+		String indexFilename = options.get("index", files.get(2) + ".index");
+		ListingIndex index = null;
+		if(saveIndex) {
+			String settingsName = engine.getName() + settings.getOptionNames();
+			index = new ListingIndex(products, files.get(1), settingsName);
+		}
+		if(rematch) {
+			IncrementalMatcher incrementalMatcher = new IncrementalMatcher(matcher, index, ListingIndex.load(indexFilename));
+			try {
+				incrementalMatcher.match(files.get(1), productMap, quarantine);
+			} finally {
+				closeQuarantine(quarantine);
+				if(shadowMatcher != null) {
+					shadowMatcher.close();
+				}
+			}
+			matcher.report();
+			saveOutput(files, options, productMap);
+			index.save(indexFilename);
+			System.out.println("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+			return;
+		}
+		
+		// checkpoint to save progress, or to pick up from
+		Checkpoint checkpoint = null;
+		if(options.has("checkpoint") || options.has("resume")) {
+			checkpoint = new Checkpoint(options.get("checkpoint", files.get(2) + ".checkpoint"), options.getInt("checkpoint-interval", Checkpoint.DEFAULT_INTERVAL), 
+					engine.getName() + settings.getOptionNames(), ListingIndex.fingerprint(products));
+			if(options.has("resume")) {
+				if(!checkpoint.resume(files.get(1), productMap)) {
+					System.out.println("No checkpoint found, starting from the beginning");
+				}
+			} else {
+				checkpoint.start(files.get(1));
+			}
+		}
+		
+		// read and match the listings
+		StreamingMatcher streamingMatcher = new StreamingMatcher(productMap, matcher);
+		streamingMatcher.setQuarantine(quarantine);
+		streamingMatcher.setCheckpoint(checkpoint);
+		streamingMatcher.setIndex(index);
+		ForkJoinPool pool = null;
+		if(grouped) {
+			pool = new ForkJoinPool(THREADS);
+			streamingMatcher.setGrouped(new GroupedMatcher((ManufacturerLookup)matcher, pool));
+		}
+		ResultCollector collector = null;
+		if(collect) {
+			String directory = options.get("spill-dir", null);
+			collector = new ResultCollector(productMap, options.getInt("result-memory", 0) * 1000000L, directory == null ? null : new File(directory));
+			streamingMatcher.setCollector(collector);
+		}
+		Writer listingWriter = null;
+		boolean matched = false;
+		try {
+			if(listingOutput) {
+				System.out.println("Writing listing results file: " + files.get(2));
+				listingWriter = FileStreams.openWriter(files.get(2));
+				streamingMatcher.setListingOutput(listingWriter);
+			}
+			streamingMatcher.match(files.get(1));
+			matched = true;
+		} finally {
+			if(collector != null && !matched) {
+				collector.deleteRuns();
+			}
+			if(listingWriter != null) {
+				listingWriter.close();
+			}
+			if(pool != null) {
+				pool.shutdown();
+			}
+			if(checkpoint != null) {
+				checkpoint.close();
+			}
+			closeQuarantine(quarantine);
+			if(shadowMatcher != null) {
+				shadowMatcher.close();
+			}
+		}
+		matcher.report();
 		
 		// save output
-		Product.saveProductListings(args[2], productMap);
+		if(collector != null) {
+			collector.save(files.get(2));
+			collector.report();
+		} else if(!listingOutput) {
+			saveOutput(files, options, productMap);
+		}
+		if(index != null) {
+			index.save(indexFilename);
+		}
+		if(checkpoint != null) {
+			checkpoint.finish();
+		}
 		
 		// done
 		long endTime = System.currentTimeMillis();
 		System.out.println("Done in " + (endTime-startTime) + "ms");
 	}
 	
+	/** Save the product listings file, and the result store if asked for. */
+	private static void saveOutput(List<String> files, Options options, Map<String, Product> productMap) throws IOException {
+		Product.saveProductListings(files.get(2), productMap);
+		if(options.has("store")) {
+			ResultStore.write(options.get("store", files.get(2) + ".store"), productMap);
+		}
+	}
+	
+	/** Filter mode, stdout is kept for the matched listings so the progress messages go to stderr. */
+	private static void filter(Options options, String productsFilename) throws IOException {
+		PrintStream output = System.out;
+		System.setOut(System.err);
+		
+		for(String name : FILE_RUN_OPTIONS) {
+			if(options.has(name)) {
+				throw new IllegalArgumentException("Filter mode matches stdin to stdout, it does not support --" + name);
+			}
+		}
+		MatchSettings settings = MatchSettings.fromOptions(options);
+		MatcherEngine engine = MatcherEngine.parse(options.get("engine", MatcherEngine.REFERENCE.getName()));
+		if(!engine.takesSettings()) {
+			checkNoSettings(settings);
+		}
+		long startTime = System.currentTimeMillis();
+		
+		Quarantine quarantine = null;
+		if(options.has("lenient")) {
+			quarantine = new Quarantine(options.get("quarantine", FilterMatcher.SOURCE_NAME + ".quarantine"), options.getInt("max-errors", Quarantine.UNLIMITED));
+		}
+		
+		ProductMatcher matcher;
+		try {
+			matcher = engine.create(Product.loadProducts(productsFilename, quarantine), settings);
+			
+			System.out.println("Filtering listings from stdin");
+			FilterMatcher filter = new FilterMatcher(matcher);
+			filter.setQuarantine(quarantine);
+			filter.filter(System.in, output);
+		} finally {
+			closeQuarantine(quarantine);
+		}
+		matcher.report();
+		System.out.println("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
+	/** 
+	 * Match the listings with both engines, report their timings and write the listings they disagree on.
+	 * The first engine's matches go into the product map.
+	 */
+	private static void compare(List<String> files, Options options, List<Product> products, MatchSettings settings, 
+			MatcherEngine engine, ProductMatcher matcher, long buildTime, MatcherEngine compareEngine, ListingArena.Type arenaType, 
+			Map<String, Product> productMap, Quarantine quarantine) throws IOException {
+		
+		long buildStart = System.nanoTime();
+		ProductMatcher compareMatcher = compareEngine.create(products, settings);
+		long compareBuildTime = System.nanoTime() - buildStart;
+		
+		String directory = options.get("listing-store-dir", null);
+		ListingArena arena = new ListingArena(arenaType, directory == null ? null : new File(directory));
+		ListingStore listings = ListingStore.load(files.get(1), arena, quarantine);
+		try {
+			System.out.println(String.format("Listing store (%s): %d listings in %.1fMB", listings.getArenaType().getName(), listings.size(), listings.getMemoryUsage() / 1e6));
+			
+			EngineComparison comparison = new EngineComparison(listings);
+			EngineComparison.Run run = comparison.run(engine.getName(), matcher, buildTime);
+			EngineComparison.Run compareRun = comparison.run(compareEngine.getName(), compareMatcher, compareBuildTime);
+			
+			EngineComparison.report(run);
+			matcher.report();
+			EngineComparison.report(compareRun);
+			compareMatcher.report();
+			
+			String filename = options.get("compare-output", files.get(2) + ".diff");
+			int differences = comparison.writeDifferences(run, compareRun, filename);
+			System.out.println("Engines disagree on " + differences + " of " + run.productNames.length + " listings, written to " + filename);
+			
+			// add the matches to the products, in listing order, only matched listings become Listing objects
+			for(int i = 0; i < listings.size(); ++i) {
+				Product product = run.productNames[i] == null ? null : productMap.get(run.productNames[i]);
+				if(product != null) {
+					product.listings.add(listings.getListing(i));
+				}
+			}
+		} finally {
+			listings.close();
+		}
+	}
+	
+	/** Default engine to compare or shadow with: the keyword engine, or the reference if that is the engine. */
+	private static MatcherEngine getOtherEngine(MatcherEngine engine) {
+		return engine == MatcherEngine.REFERENCE ? MatcherEngine.KEYWORD : MatcherEngine.REFERENCE;
+	}
+	
+	/** Refuse match settings when no engine of the run would use them. */
+	private static void checkNoSettings(MatchSettings settings) {
+		String names = settings.getOptionNames();
+		if(!names.isEmpty()) {
+			throw new IllegalArgumentException("The reference engine takes no match settings (" + names.substring(1).replace("+", ", ") + "), choose an engine with --engine");
+		}
+	}
+	
+	/** Engine names for the usage message. */
+	private static String engineNames() {
+		StringBuilder names = new StringBuilder();
+		for(MatcherEngine engine : MatcherEngine.values()) {
+			if(names.length() > 0) {
+				names.append(", ");
+			}
+			names.append(engine.getName());
+		}
+		return names.toString();
+	}
+	
+	/** Close the quarantine (if any) and print its counters. */
+	private static void closeQuarantine(Quarantine quarantine) throws IOException {
+		if(quarantine != null) {
+			quarantine.close();
+			quarantine.report();
+		}
+	}
+	
 	
 }
@@ -0,0 +1,242 @@
+package crs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Append-only checkpoint file for long matching runs.
+ * Matches are appended as they are collected, and every interval a checkpoint marker with the input byte offset
+ * already consumed is appended and synced to disk. Resuming replays the matches up to the last marker,
+ * anything written after it (a crash part way through an interval) is thrown away.
+ * The start record names the listings file, the engine and settings and a fingerprint of the products, resuming a different run is refused.
+ */
+public class Checkpoint {
+
+	/** Default number of listing lines between checkpoint markers. */
+	public static final int DEFAULT_INTERVAL = 100000;
+
+	/** Checkpoint file name. */
+	private final String filename;
+
+	/** Number of listing lines between checkpoint markers. */
+	private final int interval;
+
+	/** Engine and match settings of the run, and the products fingerprint, a checkpoint of a different run is not resumed. */
+	private final String settings;
+	private final String productsDigest;
+
+	/** Open checkpoint file, the stream is kept for syncing. */
+	private FileOutputStream output;
+	private BufferedWriter writer;
+
+	/** Input position of the last checkpoint marker. */
+	private long offset;
+	private long lines;
+
+	/** Construct the checkpoint, nothing is read or written until resume or start. */
+	public Checkpoint(String filename, int interval, String settings, String productsDigest) {
+		this.filename = filename;
+		this.interval = interval;
+		this.settings = settings;
+		this.productsDigest = productsDigest;
+	}
+
+	/** Byte offset in the listings input already consumed. */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/** Number of listing lines already consumed. */
+	public long getLines() {
+		return this.lines;
+	}
+
+	/**
+	 * Replay the checkpoint file into the products and continue appending to it.
+	 * Returns false (and starts a new file) if there is no checkpoint file.
+	 */
+	public boolean resume(String listingsFilename, Map<String, Product> productMap) throws IOException {
+		File file = new File(this.filename);
+		if(!file.exists()) {
+			start(listingsFilename);
+			return false;
+		}
+
+		System.out.println("Resuming from checkpoint file: " + this.filename);
+
+		// matches since the last marker, only applied once the marker is seen
+		List<Listing> pendingListings = new ArrayList<Listing>();
+		List<Product> pendingProducts = new ArrayList<Product>();
+		long validLength = 0;
+
+		LineReader reader = new LineReader(FileStreams.openInputStream(this.filename), 0);
+		try {
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if(!reader.isLineComplete()) {
+					// torn write at the end of the file
+					break;
+				}
+
+				JSONObject record;
+				try {
+					record = new JSONObject(line);
+				} catch (JSONException exception) {
+					// torn write at the end of the file
+					break;
+				}
+
+				try {
+					if(record.has("start")) {
+						String previous = record.getString("start");
+						if(!previous.equals(listingsFilename)) {
+							throw new IOException("Checkpoint " + this.filename + " was written for " + previous + ", not " + listingsFilename);
+						}
+						String previousSettings = record.optString("settings", "");
+						if(!previousSettings.equals(this.settings)) {
+							throw new IOException("Checkpoint " + this.filename + " was written with the settings " + previousSettings + ", not " + this.settings);
+						}
+						if(!record.optString("products", "").equals(this.productsDigest)) {
+							throw new IOException("Checkpoint " + this.filename + " was written for different products");
+						}
+						validLength = reader.getOffset();
+
+					} else if(record.has("checkpoint")) {
+						// everything up to here is consistent
+						for(int i = 0; i < pendingListings.size(); ++i) {
+							pendingProducts.get(i).listings.add(pendingListings.get(i));
+						}
+						pendingListings.clear();
+						pendingProducts.clear();
+						this.offset = record.getLong("checkpoint");
+						this.lines = record.getLong("lines");
+						validLength = reader.getOffset();
+
+					} else {
+						Product product = productMap.get(record.getString("product_name"));
+						if(product == null) {
+							throw new IOException("Checkpoint " + this.filename + " has a match for an unknown product: " + record.getString("product_name"));
+						}
+						pendingProducts.add(product);
+						pendingListings.add(new Listing(record.getJSONObject("listing"), record.getLong("ordinal")));
+					}
+				} catch (JSONException exception) {
+					throw new IOException("Invalid checkpoint record: " + exception.getMessage(), exception);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		if(validLength == 0) {
+			// not even the start record made it to disk
+			start(listingsFilename);
+			return false;
+		}
+
+		// drop the unfinished interval and carry on appending
+		RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+		try {
+			truncate.setLength(validLength);
+		} finally {
+			truncate.close();
+		}
+		open(true);
+
+		System.out.println("Resuming after " + this.lines + " listings (byte offset " + this.offset + ")");
+		return true;
+	}
+
+	/** Start a new checkpoint file. */
+	public void start(String listingsFilename) throws IOException {
+		this.offset = 0;
+		this.lines = 0;
+		open(false);
+
+		JSONObject record = new JSONObject();
+		try {
+			record.put("start", listingsFilename);
+			record.put("settings", this.settings);
+			record.put("products", this.productsDigest);
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		write(record);
+		sync();
+	}
+
+	/** Append a match. */
+	public void record(Product product, Listing listing) throws IOException {
+		JSONObject record = new JSONObject();
+		try {
+			record.put("product_name", product.product_name);
+			record.put("ordinal", listing.ordinal);
+			record.put("listing", listing.jsonObject);
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		write(record);
+	}
+
+	/** Called after all matches up to the input position are recorded, writes a checkpoint marker once per interval. */
+	public void update(long offset, long lines) throws IOException {
+		if(lines - this.lines < this.interval) {
+			return;
+		}
+
+		JSONObject record = new JSONObject();
+		try {
+			record.put("checkpoint", offset);
+			record.put("lines", lines);
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		write(record);
+		sync();
+
+		this.offset = offset;
+		this.lines = lines;
+	}
+
+	/** Close the checkpoint file, it is kept for a resume. */
+	public void close() throws IOException {
+		if(this.writer != null) {
+			this.writer.close();
+		}
+	}
+
+	/** The run completed, the checkpoint is no longer needed. */
+	public void finish() throws IOException {
+		close();
+		new File(this.filename).delete();
+	}
+
+	private void open(boolean append) throws IOException {
+		this.output = new FileOutputStream(this.filename, append);
+		this.writer = new BufferedWriter(new OutputStreamWriter(this.output));
+	}
+
+	private void write(JSONObject record) throws IOException {
+		try {
+			record.write(this.writer);
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		this.writer.write("\n");
+	}
+
+	/** Make sure everything written so far survives a crash. */
+	private void sync() throws IOException {
+		this.writer.flush();
+		this.output.getFD().sync();
+	}
+}
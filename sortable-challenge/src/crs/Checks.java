@@ -0,0 +1,270 @@
+package crs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Equivalence checks of the optimized paths against the plain ones, not part of the challenge run.
+ * Usage is: java -cp sortable-challenge.jar crs.Checks [product file] [listing file]
+ * Prints each check's result, the exit status is 1 if any check failed.
+ */
+public class Checks {
+
+	/** Number of checks that failed. */
+	private static int failures;
+
+	/** Checks Entry Point */
+	public static void main(String[] args) throws IOException {
+		Options options = new Options(args);
+		List<String> files = options.getArguments();
+		if(files.size() != 2) {
+			System.out.println("Usage is: java -cp sortable-challenge.jar crs.Checks [product file] [listing file]");
+			return;
+		}
+		List<Product> products = Product.loadProducts(files.get(0));
+		List<Listing> listings = Listing.loadListings(files.get(1));
+
+		checkMaxScore(products, listings);
+		checkResultCollector(files.get(0), files.get(1));
+		checkGrouped(products, listings, files.get(1));
+		checkListingsOutputStore(files.get(0), files.get(1));
+		checkListingStore(files.get(1), listings);
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		if(failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/** Report a check's result. */
+	private static void check(String name, boolean passed, String detail) {
+		System.out.println((passed ? "  ok      " : "  FAILED  ") + name + (detail == null ? "" : ": " + detail));
+		if(!passed) {
+			failures += 1;
+		}
+	}
+
+	/** The MaxScore lookup (early termination) gives the same answer, score and margin as scoring every result the title words reach. */
+	private static void checkMaxScore(List<Product> products, List<Listing> listings) {
+		// one model (and model family) keyword lookup per manufacturer, as the model lookups build them
+		Map<String, Map<String, List<String>>> keywords = new TreeMap<String, Map<String, List<String>>>();
+		for(Product product : products) {
+			String manufacturer = Challenge.clean(product.manufacturer);
+			Map<String, List<String>> manufacturerKeywords = keywords.get(manufacturer);
+			if(manufacturerKeywords == null) {
+				manufacturerKeywords = new TreeMap<String, List<String>>();
+				keywords.put(manufacturer, manufacturerKeywords);
+			}
+			String model = Challenge.clean(product.model);
+			String family = Challenge.clean(product.family);
+			put(manufacturerKeywords, model, product.product_name);
+			if(family.length() > 0) {
+				put(manufacturerKeywords, model + " " + family, product.product_name);
+			}
+		}
+		Map<String, KeywordLookup> lookups = new TreeMap<String, KeywordLookup>();
+		for(Map.Entry<String, Map<String, List<String>>> entry : keywords.entrySet()) {
+			lookups.put(entry.getKey(), new KeywordLookup(entry.getValue(), Challenge.MODEL_MATCH_DELTA));
+		}
+
+		ManufacturerLookup manufacturerLookup = new ManufacturerLookup(products);
+		int compared = 0;
+		String difference = null;
+		for(Listing listing : listings) {
+			String title = Challenge.clean(listing.title);
+			String manufacturer = manufacturerLookup.lookupManufacturer(Challenge.clean(listing.manufacturer), title);
+			KeywordLookup lookup = manufacturer == null ? null : lookups.get(manufacturer);
+			if(lookup == null) {
+				continue;
+			}
+			compared += 1;
+			MatchResult bounded = lookup.lookupMatch(title);
+			MatchResult exhaustive = lookup.lookupExhaustive(title);
+			if(!same(bounded.name, exhaustive.name) || bounded.score != exhaustive.score || bounded.margin != exhaustive.margin) {
+				difference = title + " gave " + bounded.name + " (" + bounded.score + ", " + bounded.margin + ") instead of " 
+						+ exhaustive.name + " (" + exhaustive.score + ", " + exhaustive.margin + ")";
+				break;
+			}
+		}
+		check("MaxScore lookup vs exhaustive scoring", difference == null, difference == null ? compared + " titles" : difference);
+	}
+
+	/** The memory budgeted collector (spilling and merging runs) writes the same product listings file as saveProductListings. */
+	private static void checkResultCollector(String productFile, String listingFile) throws IOException {
+		File directory = createTemporaryDirectory();
+		try {
+			File expected = new File(directory, "expected.txt");
+			File collected = new File(directory, "collected.txt");
+
+			Map<String, Product> productMap = loadProductMap(productFile);
+			ProductMatcher matcher = new ManufacturerLookup(new ArrayList<Product>(productMap.values()));
+			new StreamingMatcher(productMap, matcher).match(listingFile);
+			Product.saveProductListings(expected.getPath(), productMap);
+
+			// a small budget, so there are many runs to merge
+			productMap = loadProductMap(productFile);
+			ResultCollector collector = new ResultCollector(productMap, 64 * 1000, directory);
+			StreamingMatcher streamingMatcher = new StreamingMatcher(productMap, matcher);
+			streamingMatcher.setCollector(collector);
+			streamingMatcher.match(listingFile);
+			collector.save(collected.getPath());
+
+			check("ResultCollector spill and merge vs saveProductListings", sameContent(expected, collected), expected.length() + " bytes");
+		} finally {
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/** 
+	 * Grouped two phase matching gives every listing the same result as matching the listings one at a time,
+	 * called directly and from the streaming run's blocks (which run on the grouped matcher's pool).
+	 */
+	private static void checkGrouped(List<Product> products, List<Listing> listings, String listingFile) throws IOException {
+		ManufacturerLookup lookup = new ManufacturerLookup(products, new MatchSettings());
+		ForkJoinPool pool = new ForkJoinPool(Challenge.THREADS);
+		try {
+			MatchResult[] grouped = new GroupedMatcher(lookup, pool).match(listings);
+			String difference = null;
+			for(int i = 0; i < listings.size() && difference == null; ++i) {
+				MatchResult single = lookup.match(listings.get(i));
+				if(!same(single.name, grouped[i].name) || single.score != grouped[i].score || single.margin != grouped[i].margin) {
+					difference = listings.get(i).title + " gave " + grouped[i].name + " instead of " + single.name;
+				}
+			}
+			check("Grouped matching vs one listing at a time", difference == null, difference == null ? listings.size() + " listings" : difference);
+
+			StringWriter expected = new StringWriter();
+			StreamingMatcher streamingMatcher = new StreamingMatcher(new HashMap<String, Product>(), lookup);
+			streamingMatcher.setListingOutput(expected);
+			streamingMatcher.match(listingFile);
+			StringWriter actual = new StringWriter();
+			streamingMatcher = new StreamingMatcher(new HashMap<String, Product>(), lookup);
+			streamingMatcher.setListingOutput(actual);
+			streamingMatcher.setGrouped(new GroupedMatcher(lookup, pool));
+			streamingMatcher.match(listingFile);
+			check("Grouped streaming blocks vs one listing at a time", expected.toString().equals(actual.toString()), expected.getBuffer().length() + " characters");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** The result store needs the products output format, asking for it with the listings output is refused before anything is written. */
+	private static void checkListingsOutputStore(String productFile, String listingFile) throws IOException {
+		File directory = createTemporaryDirectory();
+		try {
+			File output = new File(directory, "output.txt");
+			File store = new File(directory, "output.txt.store");
+			boolean refused = false;
+			try {
+				Challenge.run(new Options(new String[] {"--output-format=listings", "--store", productFile, listingFile, output.getPath()}));
+			} catch (IllegalArgumentException exception) {
+				refused = true;
+			}
+			check("Listings output with the result store is refused", refused && !output.exists() && !store.exists(), 
+					refused ? null : "ran, output " + (output.exists() ? "" : "not ") + "written, store " + (store.exists() ? "" : "not ") + "written");
+		} finally {
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/** The listing store writes every row back as the same json text as its listing's JSONObject. */
+	private static void checkListingStore(String listingFile, List<Listing> listings) throws IOException {
+		ListingStore store = ListingStore.load(listingFile, new ListingArena(ListingArena.Type.HEAP, null), null);
+		try {
+			String difference = store.size() == listings.size() ? null : store.size() + " rows for " + listings.size() + " listings";
+			StringBuilder json = new StringBuilder();
+			for(int row = 0; row < store.size() && difference == null; ++row) {
+				json.setLength(0);
+				store.writeJson(row, json);
+				String expected = listings.get(row).jsonObject.toString();
+				if(!json.toString().equals(expected)) {
+					difference = "row " + row + " written as " + json + " instead of " + expected;
+				}
+			}
+			check("Listing store write back vs JSONObject", difference == null, difference == null ? store.size() + " rows" : difference);
+		} finally {
+			store.close();
+		}
+	}
+
+	/** Products by name, in file order. */
+	private static Map<String, Product> loadProductMap(String filename) throws IOException {
+		Map<String, Product> result = new LinkedHashMap<String, Product>();
+		for(Product product : Product.loadProducts(filename)) {
+			result.put(product.product_name, product);
+		}
+		return result;
+	}
+
+	private static void put(Map<String, List<String>> map, String key, String value) {
+		List<String> list = map.get(key);
+		if(list == null) {
+			list = new ArrayList<String>();
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/** New empty directory for a check's files. */
+	private static File createTemporaryDirectory() throws IOException {
+		File directory = File.createTempFile("crs-checks", "");
+		if(!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Can not create the check directory: " + directory);
+		}
+		return directory;
+	}
+
+	/** Returns true if the files have the same bytes. */
+	private static boolean sameContent(File a, File b) throws IOException {
+		if(a.length() != b.length()) {
+			return false;
+		}
+		InputStream inputA = new FileInputStream(a);
+		InputStream inputB = new FileInputStream(b);
+		try {
+			byte[] bufferA = new byte[65536];
+			byte[] bufferB = new byte[65536];
+			while(true) {
+				int count = inputA.read(bufferA);
+				if(count < 0) {
+					return true;
+				}
+				int filled = 0;
+				while(filled < count) {
+					int read = inputB.read(bufferB, filled, count - filled);
+					if(read < 0) {
+						return false;
+					}
+					filled += read;
+				}
+				if(!Arrays.equals(Arrays.copyOf(bufferA, count), Arrays.copyOf(bufferB, count))) {
+					return false;
+				}
+			}
+		} finally {
+			inputA.close();
+			inputB.close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package crs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs matching engines over the same listings and compares them: throughput, per listing latency and the listings they disagree on.
+ * Each engine gets an untimed warm up pass first so the second engine does not benefit from the first one's JIT work.
+ */
+public class EngineComparison {
+
+	/** Number of listings a thread takes at once. */
+	private static final int CHUNK_SIZE = 64;
+
+	/** Listings to match, held in columns rather than as Listing objects. */
+	private final ListingStore listings;
+
+	/** Construct the comparison over the listings. */
+	public EngineComparison(ListingStore listings) {
+		this.listings = listings;
+	}
+
+	/** Listings being matched. */
+	public ListingStore getListings() {
+		return this.listings;
+	}
+
+	/** Answers and timings of one engine. */
+	public static class Run {
+
+		/** Engine name. */
+		public final String name;
+
+		/** Matched product name of each listing (null for no match), in listing order. */
+		public final String[] productNames;
+
+		/** Lookup time of each listing in nanoseconds, in listing order. */
+		public final long[] latencies;
+
+		/** Matcher build time and wall time of the timed pass, in nanoseconds. */
+		public long buildTime;
+		public long wallTime;
+
+		Run(String name, int size) {
+			this.name = name;
+			this.productNames = new String[size];
+			this.latencies = new long[size];
+		}
+
+		/** Number of listings matched. */
+		public int getMatched() {
+			int matched = 0;
+			for(String productName : this.productNames) {
+				if(productName != null) {
+					matched += 1;
+				}
+			}
+			return matched;
+		}
+
+		/** Latency at the percentile (0 to 100), in nanoseconds. */
+		public long getLatency(double percentile) {
+			if(this.latencies.length == 0) {
+				return 0;
+			}
+			long[] sorted = this.latencies.clone();
+			Arrays.sort(sorted);
+			int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+		}
+	}
+
+	/** Match all the listings with the engine on the matching threads, timing every lookup. */
+	public Run run(String name, ProductMatcher matcher, long buildTime) throws IOException {
+		System.out.println("Matching listings with engine: " + name);
+
+		// warm up, then the timed pass (the only one in the engine's counters)
+		Run run = new Run(name, this.listings.size());
+		matchAll(matcher, run);
+		matcher.resetCounters();
+		long start = System.nanoTime();
+		matchAll(matcher, run);
+		run.wallTime = System.nanoTime() - start;
+		run.buildTime = buildTime;
+		return run;
+	}
+
+	/** Match every listing into the run, the threads take chunks of listings until none are left. */
+	private void matchAll(final ProductMatcher matcher, final Run run) throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Challenge.THREADS);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for(int i = 0; i < Challenge.THREADS; ++i) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						for(int first = next.getAndAdd(CHUNK_SIZE); first < listings.size(); first = next.getAndAdd(CHUNK_SIZE)) {
+							int end = Math.min(first + CHUNK_SIZE, listings.size());
+							for(int i = first; i < end; ++i) {
+								long start = System.nanoTime();
+								run.productNames[i] = matcher.matchFields(listings.getManufacturerId(i), listings.getManufacturer(i), listings.getTitle(i)).name;
+								run.latencies[i] = System.nanoTime() - start;
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException exception) {
+			throw new IOException("Failed to match: " + exception.getCause().getMessage(), exception.getCause());
+		} catch (InterruptedException exception) {
+			throw new IOException("Interrupted while matching", exception);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Print the timings of the engine. */
+	public static void report(Run run) {
+		System.out.println(String.format("Engine %s: build %.0fms, %d listings in %.0fms (%.0f listings/s), latency p50 %.1fus p90 %.1fus p99 %.1fus max %.1fus, matched %d",
+				run.name, run.buildTime / 1e6, run.latencies.length, run.wallTime / 1e6, run.latencies.length / (run.wallTime / 1e9),
+				run.getLatency(50) / 1e3, run.getLatency(90) / 1e3, run.getLatency(99) / 1e3, run.getLatency(100) / 1e3, run.getMatched()));
+	}
+
+	/**
+	 * Write the listings the engines disagree on to the file, one json object per line with the listing's ordinal,
+	 * manufacturer and title and each engine's answer (null for no match). Returns the number of differences.
+	 */
+	public int writeDifferences(Run first, Run second, String filename) throws IOException {
+		int differences = 0;
+		Writer writer = FileStreams.openWriter(filename);
+		try {
+			for(int i = 0; i < this.listings.size(); ++i) {
+				String a = first.productNames[i];
+				String b = second.productNames[i];
+				if(a == null ? b == null : a.equals(b)) {
+					continue;
+				}
+				differences += 1;
+
+				toDifference(this.listings.getOrdinal(i), this.listings.getManufacturer(i), this.listings.getTitle(i), first.name, a, second.name, b).write(writer);
+				writer.write("\n");
+			}
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		} finally {
+			writer.close();
+		}
+		return differences;
+	}
+
+	/** Json record of a listing two engines disagree on, with each engine's answer (null for no match). */
+	static JSONObject toDifference(Listing listing, String firstName, String first, String secondName, String second) throws JSONException {
+		return toDifference(listing.ordinal, listing.manufacturer, listing.title, firstName, first, secondName, second);
+	}
+
+	static JSONObject toDifference(long ordinal, String manufacturer, String title, String firstName, String first, String secondName, String second) throws JSONException {
+		JSONObject record = new JSONObject();
+		record.put("ordinal", ordinal);
+		record.put("manufacturer", manufacturer);
+		record.put("title", title);
+		record.put(firstName, first == null ? JSONObject.NULL : first);
+		record.put(secondName, second == null ? JSONObject.NULL : second);
+		return record;
+	}
+}
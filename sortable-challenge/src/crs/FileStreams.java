@@ -0,0 +1,66 @@
+package crs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.zip.GZIPInputStream;
+
+/** Opens the input and output files, handling gzip compression transparently. */
+public class FileStreams {
+
+	/** Gzip files start with these two bytes. */
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+
+	/** Read buffer size. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Returns true for file names that should be written compressed. */
+	public static boolean isGzipName(String filename) {
+		return filename.toLowerCase().endsWith(".gz");
+	}
+
+	/** Open the file for reading, gzip files are detected by their header (not the name) and decompressed. */
+	public static InputStream openInputStream(String filename) throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE);
+
+		// peek at the header
+		input.mark(2);
+		int magic1 = input.read();
+		int magic2 = input.read();
+		input.reset();
+
+		if(magic1 == GZIP_MAGIC_1 && magic2 == GZIP_MAGIC_2) {
+			// note: GZIPInputStream reads all members of a multi-member file
+			return new BufferedInputStream(new GZIPInputStream(input, BUFFER_SIZE), BUFFER_SIZE);
+		}
+		return input;
+	}
+
+	/** Open the file for reading lines, see openInputStream. */
+	public static BufferedReader openReader(String filename) throws IOException {
+		return new BufferedReader(new InputStreamReader(openInputStream(filename)));
+	}
+
+	/** Open the file for writing, names ending in '.gz' are compressed on Challenge.THREADS threads. */
+	public static OutputStream openOutputStream(String filename) throws IOException {
+		OutputStream output = new FileOutputStream(filename);
+		if(isGzipName(filename)) {
+			return new ParallelGzipOutputStream(new BufferedOutputStream(output, BUFFER_SIZE), Challenge.THREADS);
+		}
+		return new BufferedOutputStream(output, BUFFER_SIZE);
+	}
+
+	/** Open the file for writing text, see openOutputStream. */
+	public static BufferedWriter openWriter(String filename) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(openOutputStream(filename)));
+	}
+}
@@ -0,0 +1,171 @@
+package crs;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pipeline filter, json listings are read one per line and each is written back out with its matched "product_name" (or null)
+ * as soon as it and every listing before it are matched. The lines are matched on multiple threads,
+ * the output keeps the input order and at most MAX_PENDING_LINES lines are in flight (reading waits when the buffer is full).
+ * Unlike the file readers (BlockPipeline) the lines are not blocked up, so a listing's result does not wait for the lines after it.
+ */
+public class FilterMatcher {
+
+	/** Name used for the input in error messages and the quarantine. */
+	public static final String SOURCE_NAME = "stdin";
+
+	/** Maximum number of lines read but not yet written. */
+	private static final int MAX_PENDING_LINES = Challenge.THREADS * 64;
+
+	/** Marks the end of the input for the writer. */
+	private static final Future<String> END = new FutureTask<String>(new Callable<String>() {
+		public String call() {
+			return null;
+		}
+	});
+
+	/** Matching engine. */
+	private final ProductMatcher matcher;
+
+	/** Manufacturer and currency dictionaries of the run. */
+	private final ListingDictionaries dictionaries = new ListingDictionaries();
+
+	/** Optional quarantine for bad lines, without it the first bad line throws IOException. */
+	private Quarantine quarantine;
+
+	/** Construct the filter. */
+	public FilterMatcher(ProductMatcher matcher) {
+		this.matcher = matcher;
+	}
+
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/** Match every listing line of the input, writing the results to the output until the input ends. The streams are not closed. */
+	public void filter(InputStream input, OutputStream output) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Challenge.THREADS);
+		BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<Future<String>>(MAX_PENDING_LINES);
+		OrderedWriter writer = new OrderedWriter(pending, new BufferedWriter(new OutputStreamWriter(output)));
+		Thread writerThread = new Thread(writer, "filter-writer");
+		writerThread.start();
+
+		LineReader reader = new LineReader(input, 0);
+		try {
+			long lineNumber = 0;
+			for(String line = reader.readLine(); line != null && writer.error == null; line = reader.readLine()) {
+				lineNumber += 1;
+				pending.put(executor.submit(new LineMatcher(line, lineNumber)));
+			}
+			pending.put(END);
+			writerThread.join();
+		} catch (InterruptedException exception) {
+			writerThread.interrupt();
+			throw new IOException("Interrupted while filtering", exception);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if(writer.error != null) {
+			throw writer.error;
+		}
+	}
+
+	/** Parses and matches one line, returns the output line or null if it was quarantined. */
+	private class LineMatcher implements Callable<String> {
+
+		private final String line;
+		private final long lineNumber;
+
+		LineMatcher(String line, long lineNumber) {
+			this.line = line;
+			this.lineNumber = lineNumber;
+		}
+
+		public String call() throws IOException {
+			List<Listing> listings = dictionaries.reader.parseBlock(SOURCE_NAME, Collections.singletonList(this.line), this.lineNumber, quarantine);
+			if(listings.isEmpty()) {
+				return null;
+			}
+
+			Listing listing = listings.get(0);
+			String productName = matcher.lookupProductName(listing);
+			try {
+				// the listing is not kept, so its object can be reused for the output
+				JSONObject result = listing.jsonObject;
+				result.put("product_name", productName == null ? JSONObject.NULL : productName);
+				return result.toString();
+			} catch (JSONException exception) {
+				throw new IOException("Invalid JSON format on line " + this.lineNumber + ": " + exception.getMessage(), exception);
+			}
+		}
+	}
+
+	/** Writes the results in input order, flushing whenever it has caught up with the matching threads. */
+	private static class OrderedWriter implements Runnable {
+
+		private final BlockingQueue<Future<String>> pending;
+		private final Writer writer;
+
+		/** First failure, the reader stops once this is set. */
+		volatile IOException error;
+
+		OrderedWriter(BlockingQueue<Future<String>> pending, Writer writer) {
+			this.pending = pending;
+			this.writer = writer;
+		}
+
+		public void run() {
+			try {
+				for(Future<String> future = this.pending.take(); future != END; future = this.pending.take()) {
+					
+					// after a failure keep taking until the reader stops, so it never blocks on a full queue
+					if(this.error != null) {
+						continue;
+					}
+					try {
+						write(future);
+					} catch (IOException exception) {
+						this.error = exception;
+					}
+				}
+				if(this.error == null) {
+					this.writer.flush();
+				}
+			} catch (IOException exception) {
+				this.error = exception;
+			} catch (InterruptedException exception) {
+				this.error = new IOException("Interrupted while writing", exception);
+			}
+		}
+
+		/** Wait for the line's result and write it, flushing if the next result is not ready yet. */
+		private void write(Future<String> future) throws IOException, InterruptedException {
+			String line = BlockPipeline.getResult(future, "match");
+			if(line != null) {
+				this.writer.write(line);
+				this.writer.write("\n");
+			}
+			Future<String> next = this.pending.peek();
+			if(next == null || !next.isDone()) {
+				this.writer.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package crs;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Follow mode, like tail -f: the listings file is watched (WatchService events, and polling the size for file systems without events)
+ * and every complete line appended to it is matched and written to the per listing output.
+ * The position is saved in a state file after each block, together with the output length,
+ * so a restart cuts the output back to the saved length and continues from the saved listing offset without losing or repeating lines.
+ * Output that does not belong to the current position (an output without a state file, or the output so far when the listings file
+ * is truncated or replaced and the ordinals start again) is moved aside to the first free [output].N instead of being cut or appended to.
+ * A replaced file is told from one appended to by a digest of its first bytes, and a state file of a run with other settings
+ * or products is refused.
+ */
+public class FollowMatcher {
+
+	/** Default time between size checks, in milliseconds. */
+	public static final int DEFAULT_POLL_INTERVAL = 1000;
+
+	/** Bytes at the start of the listings file kept as a digest, to tell a replaced file from one appended to. */
+	private static final int HEAD_BYTES = 4096;
+
+	/** Matching engine. */
+	private final ProductMatcher matcher;
+
+	/** Manufacturer and currency dictionaries of the run. */
+	private final ListingDictionaries dictionaries = new ListingDictionaries();
+
+	/** Engine and match settings of the run, and the products fingerprint, a state file of a different run is refused. */
+	private final String settings;
+	private final String productsDigest;
+
+	/** Time between size checks, and idle time before returning (0 to follow forever), in milliseconds. */
+	private final int pollInterval;
+	private final long idleTimeout;
+
+	/** Optional quarantine for bad lines, without it the first bad line throws IOException. */
+	private Quarantine quarantine;
+
+	/** Position in the listings file and the output. */
+	private long offset;
+	private long lines;
+	private long outputLength;
+
+	/** Digest of the listings file's bytes up to the position, at most HEAD_BYTES of them. */
+	private String head;
+
+	/** Output being appended to. */
+	private FileOutputStream output;
+	private Writer writer;
+
+	/** Construct the follower. */
+	public FollowMatcher(ProductMatcher matcher, String settings, String productsDigest, int pollInterval, long idleTimeout) {
+		this.matcher = matcher;
+		this.settings = settings;
+		this.productsDigest = productsDigest;
+		this.pollInterval = pollInterval;
+		this.idleTimeout = idleTimeout;
+	}
+
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/** State file name for the output file. */
+	public static String getStateFilename(String outputFilename) {
+		return outputFilename + ".offset";
+	}
+
+	/** Follow the listings file, appending a json line per listing to the output. Only returns once idle for the idle timeout (if set). */
+	public void follow(String listingsFilename, String outputFilename) throws IOException {
+		if(FileStreams.isGzipName(listingsFilename) || FileStreams.isGzipName(outputFilename)) {
+			throw new IOException("Follow mode does not work with compressed files");
+		}
+		String stateFilename = getStateFilename(outputFilename);
+		Path listings = Paths.get(listingsFilename).toAbsolutePath();
+
+		// pick up from the saved state, dropping output written after it
+		boolean resumed = loadState(stateFilename, listingsFilename);
+		if(resumed) {
+			System.out.println("Following " + listingsFilename + " from line " + this.lines + " (byte offset " + this.offset + ")");
+		} else {
+			System.out.println("Following " + listingsFilename + " from the start");
+		}
+		File outputFile = new File(outputFilename);
+		if(outputFile.length() < this.outputLength) {
+			throw new IOException("Output file " + outputFilename + " is shorter than the " + this.outputLength + " bytes in " + stateFilename 
+					+ ", remove the state file to start again");
+		}
+		if(!resumed && outputFile.length() > 0) {
+			System.out.println("Output file " + outputFilename + " has no saved position, moved it to " + rotateOutput(outputFilename));
+		}
+		RandomAccessFile truncate = new RandomAccessFile(outputFilename, "rw");
+		try {
+			truncate.setLength(this.outputLength);
+		} finally {
+			truncate.close();
+		}
+
+		openOutput(outputFilename);
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		ExecutorService executor = Executors.newFixedThreadPool(Challenge.THREADS);
+		try {
+			listings.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			long idleSince = System.currentTimeMillis();
+			while(true) {
+				long matched = catchUp(listings, listingsFilename, outputFilename, stateFilename, executor);
+				if(matched > 0) {
+					System.out.println("Matched " + matched + " new listings, " + this.lines + " in total");
+					idleSince = System.currentTimeMillis();
+				} else if(this.idleTimeout > 0 && System.currentTimeMillis() - idleSince >= this.idleTimeout) {
+					System.out.println("No new listings for " + this.idleTimeout + "ms, stopping");
+					break;
+				}
+
+				// wake up on a change in the directory, or after the poll interval anyway
+				WatchKey key = watcher.poll(this.pollInterval, TimeUnit.MILLISECONDS);
+				if(key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} catch (InterruptedException exception) {
+			throw new IOException("Interrupted while following", exception);
+		} finally {
+			executor.shutdownNow();
+			watcher.close();
+			this.writer.close();
+		}
+	}
+
+	/** Match the complete lines added since the last position, returns the number of lines matched. */
+	private long catchUp(Path listings, final String listingsFilename, String outputFilename, final String stateFilename, ExecutorService executor) throws IOException {
+		if(!Files.exists(listings)) {
+			return 0;
+		}
+		long size = Files.size(listings);
+		if(size < this.offset || !headDigest(listings, Math.min(this.offset, HEAD_BYTES)).equals(this.head)) {
+			// truncated or replaced, the ordinals start again so the output does too
+			this.writer.close();
+			String rotated = rotateOutput(outputFilename);
+			this.offset = 0;
+			this.lines = 0;
+			this.outputLength = 0;
+			this.head = headDigest(listings, 0);
+			openOutput(outputFilename);
+			saveState(stateFilename, listingsFilename);
+			System.out.println("Listings file is shorter than the saved position or its start changed, starting again from the beginning (output so far moved to " + rotated + ")");
+		}
+		if(size == this.offset) {
+			return 0;
+		}
+
+		BlockPipeline<String> pipeline = new BlockPipeline<String>(BlockPipeline.BLOCK_SIZE, "match") {
+			protected Callable<String> createTask(final List<String> lines, final long firstLineNumber) {
+				return new Callable<String>() {
+					public String call() throws IOException {
+						StringBuilder result = new StringBuilder();
+						for(Listing listing : dictionaries.reader.parseBlock(listingsFilename, lines, firstLineNumber, quarantine)) {
+							StreamingMatcher.writeListing(result, listing, matcher.match(listing));
+						}
+						return result.toString();
+					}
+				};
+			}
+
+			protected void collect(String blockOutput, long endOffset, long endLineNumber) throws IOException {
+				write(blockOutput, endOffset, endLineNumber, stateFilename, listingsFilename);
+			}
+		};
+		// a line still being written is picked up next time
+		pipeline.setCompleteLinesOnly(true);
+
+		long startLines = this.lines;
+		FileInputStream input = new FileInputStream(listings.toFile());
+		try {
+			input.getChannel().position(this.offset);
+			pipeline.run(new LineReader(input, this.offset), this.lines, executor);
+		} finally {
+			input.close();
+		}
+		return this.lines - startLines;
+	}
+
+	/** Append a block's output and save the new position. */
+	private void write(String blockOutput, long endOffset, long endLineNumber, String stateFilename, String listingsFilename) throws IOException {
+		// output first, the state only ever points at output that is on disk
+		this.writer.write(blockOutput);
+		this.writer.flush();
+		this.output.getFD().sync();
+
+		if(this.offset < HEAD_BYTES) {
+			this.head = headDigest(Paths.get(listingsFilename), Math.min(endOffset, HEAD_BYTES));
+		}
+		this.offset = endOffset;
+		this.lines = endLineNumber;
+		this.outputLength = this.output.getChannel().position();
+		saveState(stateFilename, listingsFilename);
+	}
+
+	private void openOutput(String outputFilename) throws IOException {
+		this.output = new FileOutputStream(outputFilename, true);
+		this.writer = new BufferedWriter(new OutputStreamWriter(this.output));
+	}
+
+	/** Move the output file to the first free [output].N, returns the new name. */
+	private static String rotateOutput(String outputFilename) throws IOException {
+		for(int n = 1; ; ++n) {
+			Path rotated = Paths.get(outputFilename + "." + n);
+			if(!Files.exists(rotated)) {
+				Files.move(Paths.get(outputFilename), rotated);
+				return rotated.toString();
+			}
+		}
+	}
+
+	/** Load the saved position, returns false (starting from the beginning) if there is no state file. */
+	private boolean loadState(String stateFilename, String listingsFilename) throws IOException {
+		this.offset = 0;
+		this.lines = 0;
+		this.outputLength = 0;
+		this.head = headDigest(null, 0);
+
+		File file = new File(stateFilename);
+		if(!file.exists()) {
+			return false;
+		}
+		FileInputStream input = new FileInputStream(file);
+		try {
+			JSONObject state = new JSONObject(new JSONTokener(new String(readFully(input), "UTF-8")));
+			if(!state.getString("listings").equals(listingsFilename)) {
+				throw new IOException("State file " + stateFilename + " is for a different listings file: " + state.getString("listings"));
+			}
+			String previousSettings = state.optString("settings", "");
+			if(!previousSettings.equals(this.settings)) {
+				throw new IOException("State file " + stateFilename + " was written with the settings " + previousSettings + ", not " + this.settings 
+						+ ", remove the state file to start again");
+			}
+			if(!state.optString("products", "").equals(this.productsDigest)) {
+				throw new IOException("State file " + stateFilename + " was written for different products, remove the state file to start again");
+			}
+			this.offset = state.getLong("offset");
+			this.lines = state.getLong("lines");
+			this.outputLength = state.getLong("output");
+			this.head = state.getString("head");
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		} finally {
+			input.close();
+		}
+		return true;
+	}
+
+	/** Replace the state file, written to a temporary file first so a crash leaves either the old or the new state. */
+	private void saveState(String stateFilename, String listingsFilename) throws IOException {
+		JSONObject state = new JSONObject();
+		try {
+			state.put("listings", listingsFilename);
+			state.put("settings", this.settings);
+			state.put("products", this.productsDigest);
+			state.put("head", this.head);
+			state.put("offset", this.offset);
+			state.put("lines", this.lines);
+			state.put("output", this.outputLength);
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+
+		File temporary = new File(stateFilename + ".tmp");
+		FileOutputStream output = new FileOutputStream(temporary);
+		try {
+			output.write(state.toString().getBytes("UTF-8"));
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), Paths.get(stateFilename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Digest of the file's first length bytes (the file is not read for 0). */
+	private static String headDigest(Path file, long length) throws IOException {
+		MessageDigest digest = ListingIndex.createDigest();
+		if(length > 0) {
+			byte[] bytes = new byte[(int)length];
+			DataInputStream input = new DataInputStream(new FileInputStream(file.toFile()));
+			try {
+				input.readFully(bytes);
+			} finally {
+				input.close();
+			}
+			digest.update(bytes);
+		}
+		return ListingIndex.toHex(digest.digest());
+	}
+
+	private static byte[] readFully(FileInputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for(int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+			bytes.write(buffer, 0, count);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,174 @@
+package crs;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Two phase matching of a batch of listings, for cache locality. Phase one resolves every listing's manufacturer
+ * (cheap with the manufacturer cache), phase two groups the listings by manufacturer and does the model lookups group by group,
+ * so each ModelLookup's structures stay in the CPU caches while its listings are matched instead of being evicted
+ * by the next listing's unrelated manufacturer. Both phases run on a work stealing (fork join) pool, large groups
+ * are split so idle threads can steal half of a group. The answers are the same as matching the listings one by one.
+ * Called from a task already running on the pool (the streaming run's blocks) the phases run in that task,
+ * so the blocks and the phases share the pool's threads instead of a second pool being busy on top of them.
+ */
+public class GroupedMatcher {
+
+	/** Listings resolved by one phase one task. */
+	private static final int RESOLVE_CHUNK_SIZE = 256;
+
+	/** Groups larger than this are split between threads in phase two. */
+	private static final int GROUP_CHUNK_SIZE = 256;
+
+	private final ManufacturerLookup lookup;
+	private final ForkJoinPool pool;
+
+	/** Construct the matcher, running on the pool. */
+	public GroupedMatcher(ManufacturerLookup lookup, ForkJoinPool pool) {
+		this.lookup = lookup;
+		this.pool = pool;
+	}
+
+	/** Match the listings, returning their results in listing order. */
+	public MatchResult[] match(List<Listing> listings) {
+		int size = listings.size();
+		ManufacturerLookup.ResolvedListing[] resolved = new ManufacturerLookup.ResolvedListing[size];
+		MatchResult[] results = new MatchResult[size];
+
+		// phase one, manufacturers only
+		invoke(new ResolveTask(listings, resolved, 0, size));
+
+		// group the listing positions by manufacturer (counting sort, input order within a group)
+		Map<ModelLookup, Integer> groupIds = new IdentityHashMap<ModelLookup, Integer>();
+		int[] groupOfListing = new int[size];
+		List<Integer> groupSizes = new ArrayList<Integer>();
+		for(int i = 0; i < size; ++i) {
+			if(resolved[i] == null) {
+				results[i] = MatchResult.NONE;
+				groupOfListing[i] = -1;
+				continue;
+			}
+			Integer group = groupIds.get(resolved[i].modelLookup);
+			if(group == null) {
+				group = groupSizes.size();
+				groupIds.put(resolved[i].modelLookup, group);
+				groupSizes.add(0);
+			}
+			groupOfListing[i] = group;
+			groupSizes.set(group, groupSizes.get(group) + 1);
+		}
+		int[] groupStarts = new int[groupSizes.size() + 1];
+		for(int group = 0; group < groupSizes.size(); ++group) {
+			groupStarts[group + 1] = groupStarts[group] + groupSizes.get(group);
+		}
+		int[] order = new int[groupStarts[groupSizes.size()]];
+		int[] next = groupStarts.clone();
+		for(int i = 0; i < size; ++i) {
+			if(groupOfListing[i] >= 0) {
+				order[next[groupOfListing[i]]++] = i;
+			}
+		}
+
+		// phase two, one task per manufacturer
+		List<GroupTask> tasks = new ArrayList<GroupTask>();
+		for(int group = 0; group < groupSizes.size(); ++group) {
+			tasks.add(new GroupTask(resolved, results, order, groupStarts[group], groupStarts[group + 1]));
+		}
+		invoke(new GroupsTask(tasks));
+		return results;
+	}
+
+	/** The pool the phases run on, blocks can be run on it too. */
+	public ForkJoinPool getPool() {
+		return this.pool;
+	}
+
+	/** Run the task on the pool, in the current thread if it is one of the pool's. */
+	private void invoke(RecursiveAction task) {
+		if(ForkJoinTask.getPool() == this.pool) {
+			task.invoke();
+		} else {
+			this.pool.invoke(task);
+		}
+	}
+
+	/** Phase one over a range of listings, split until it is small. */
+	private class ResolveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Listing> listings;
+		private final ManufacturerLookup.ResolvedListing[] resolved;
+		private final int start;
+		private final int end;
+
+		ResolveTask(List<Listing> listings, ManufacturerLookup.ResolvedListing[] resolved, int start, int end) {
+			this.listings = listings;
+			this.resolved = resolved;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if(this.end - this.start <= RESOLVE_CHUNK_SIZE) {
+				for(int i = this.start; i < this.end; ++i) {
+					this.resolved[i] = lookup.resolve(this.listings.get(i));
+				}
+				return;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new ResolveTask(this.listings, this.resolved, this.start, middle), new ResolveTask(this.listings, this.resolved, middle, this.end));
+		}
+	}
+
+	/** All the phase two groups. */
+	private static class GroupsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<GroupTask> tasks;
+
+		GroupsTask(List<GroupTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		protected void compute() {
+			invokeAll(this.tasks);
+		}
+	}
+
+	/** Phase two over (part of) one manufacturer's listings, given as positions in order[start, end). */
+	private class GroupTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ManufacturerLookup.ResolvedListing[] resolved;
+		private final MatchResult[] results;
+		private final int[] order;
+		private final int start;
+		private final int end;
+
+		GroupTask(ManufacturerLookup.ResolvedListing[] resolved, MatchResult[] results, int[] order, int start, int end) {
+			this.resolved = resolved;
+			this.results = results;
+			this.order = order;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if(this.end - this.start <= GROUP_CHUNK_SIZE) {
+				for(int i = this.start; i < this.end; ++i) {
+					int listing = this.order[i];
+					this.results[listing] = lookup.matchResolved(this.resolved[listing]);
+				}
+				return;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new GroupTask(this.resolved, this.results, this.order, this.start, middle),
+					new GroupTask(this.resolved, this.results, this.order, middle, this.end));
+		}
+	}
+}
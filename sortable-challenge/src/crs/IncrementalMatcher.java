@@ -0,0 +1,64 @@
+package crs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Re-match after a catalog change, using the listing index of the previous run.
+ * Only the listings that have an added, removed or changed manufacturer as a candidate are looked up again,
+ * every other listing keeps its previous answer. The new index is filled in as it goes.
+ */
+public class IncrementalMatcher {
+
+	/** Matching engine for the new catalog. */
+	private final ProductMatcher matcher;
+
+	/** Index being built for the new catalog, and the previous run's index. */
+	private final ListingIndex index;
+	private final ListingIndex previous;
+
+	/** Construct the matcher, throws IOException if the previous index does not fit this run. */
+	public IncrementalMatcher(ProductMatcher matcher, ListingIndex index, ListingIndex previous) throws IOException {
+		index.checkCompatible(previous);
+		this.matcher = matcher;
+		this.index = index;
+		this.previous = previous;
+	}
+
+	/** Match the listings file, adding the matches (old and new) to the products. */
+	public void match(String listingsFilename, Map<String, Product> productMap, Quarantine quarantine) throws IOException {
+		Set<String> changed = this.index.getChangedManufacturers(this.previous);
+		System.out.println("Catalog changes: " + (changed.isEmpty() ? "none" : changed.size() + " manufacturers " + changed));
+
+		Set<Long> affected = this.previous.getListings(changed);
+		Map<Long, String> results = this.previous.getResults();
+
+		List<Listing> listings = Listing.loadListings(listingsFilename, quarantine);
+		int rematched = 0;
+		int differences = 0;
+		for(Listing listing : listings) {
+			Set<String> candidates = this.index.getCandidates(listing);
+			String productName = results.get(listing.ordinal);
+
+			// a changed manufacturer could be, or could have been, the listing's manufacturer
+			if(affected.contains(listing.ordinal) || !Collections.disjoint(candidates, changed)) {
+				String newProductName = this.matcher.lookupProductName(listing);
+				rematched += 1;
+				if(newProductName == null ? productName != null : !newProductName.equals(productName)) {
+					differences += 1;
+				}
+				productName = newProductName;
+			}
+			this.index.record(listing, candidates, productName);
+
+			Product product = productName == null ? null : productMap.get(productName);
+			if(product != null) {
+				product.listings.add(listing);
+			}
+		}
+		System.out.println("Re-matched " + rematched + " of " + listings.size() + " listings, " + differences + " changed");
+	}
+}
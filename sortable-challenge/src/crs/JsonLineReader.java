@@ -0,0 +1,84 @@
+package crs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Line by line json file reader, the lines are read in blocks and parsed on multiple threads while keeping the file order.
+ * Gzip files are decompressed on the fly. Without a quarantine the first bad line throws IOException, with a quarantine bad lines are skipped and recorded.
+ */
+public abstract class JsonLineReader<T> {
+
+	/** Convert one json object into the record, line numbers start at 1. */
+	protected abstract T parse(JSONObject object, long lineNumber) throws JSONException;
+
+	/** Receives the parsed records a block at a time, in file order. */
+	public interface BlockHandler<T> {
+		void handle(List<T> records) throws IOException;
+	}
+
+	/** Read the whole file, throws IOException for file errors and for json errors when there is no quarantine. */
+	public List<T> read(String filename, Quarantine quarantine) throws IOException {
+		final List<T> result = new ArrayList<T>();
+		read(filename, quarantine, new BlockHandler<T>() {
+			public void handle(List<T> records) {
+				result.addAll(records);
+			}
+		});
+		return result;
+	}
+
+	/** Read the whole file passing each block of records to the handler, so the records need not all be kept. */
+	public void read(final String filename, final Quarantine quarantine, final BlockHandler<T> result) throws IOException {
+		BlockPipeline<List<T>> pipeline = new BlockPipeline<List<T>>(BlockPipeline.BLOCK_SIZE, "parse") {
+			protected Callable<List<T>> createTask(final List<String> lines, final long firstLineNumber) {
+				return new Callable<List<T>>() {
+					public List<T> call() throws IOException {
+						return parseBlock(filename, lines, firstLineNumber, quarantine);
+					}
+				};
+			}
+
+			protected void collect(List<T> records, long endOffset, long endLineNumber) throws IOException {
+				result.handle(records);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(Challenge.THREADS);
+		LineReader reader = new LineReader(FileStreams.openInputStream(filename), 0);
+		try {
+			pipeline.run(reader, 0, executor);
+		} finally {
+			reader.close();
+			executor.shutdownNow();
+		}
+	}
+
+	/** Parse a block of lines, bad lines go to the quarantine if there is one, otherwise the first bad line throws IOException. */
+	public List<T> parseBlock(String filename, List<String> lines, long firstLineNumber, Quarantine quarantine) throws IOException {
+		List<T> result = new ArrayList<T>(lines.size());
+		for(int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i);
+			long lineNumber = firstLineNumber + i;
+			try {
+				result.add(parse(new JSONObject(line), lineNumber));
+			} catch (JSONException exception) {
+				if(quarantine == null) {
+					throw new IOException("Invalid JSON format on line " + lineNumber + ": " + exception.getMessage(), exception);
+				}
+				quarantine.reject(filename, lineNumber, line, exception.getMessage());
+			}
+		}
+		if(quarantine != null) {
+			quarantine.accept(result.size());
+		}
+		return result;
+	}
+}
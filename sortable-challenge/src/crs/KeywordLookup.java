@@ -1,17 +1,42 @@
 package crs;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Keyword lookup with aliasing of keywords. */
+/** 
+ * Keyword lookup with aliasing of keywords.
+ * Keywords can optionally be reduced to results (several keywords for one result, or one keyword shared by several results),
+ * the keyword's score is then divided equally between its results and the result scores are compared.
+ */
 public class KeywordLookup {
 	
 	/** Default delta amount to get good matches. */
 	public static final float DEFAULT_DELTA = 0.45f;
+	
+	/** Slack for float rounding when comparing score bounds, bounds are only used to skip work so this only needs to be safe. */
+	private static final float BOUND_EPSILON = 0.0001f;
+	
+	/** Share of a keyword's aliases in the lookup words the candidate recall target is for, keywords with fewer score too little to matter. */
+	private static final float CANDIDATE_MATCH_SHARE = 0.5f;
+	
+	/** MinHash rows per band, a band matches when the lookup words hold the aliases of all its rows. */
+	private static final int CANDIDATE_ROWS = 2;
+	
+	/** Seed of the MinHash functions, fixed so the candidates are the same every run. */
+	private static final long CANDIDATE_SEED = 0x5EEDL;
 
 	/** A list of the keywords we can look for. */
 	private final Map<String, List<String>> keywords = new TreeMap<String, List<String>>();
@@ -25,6 +50,22 @@ public class KeywordLookup {
 	/** map of one to many keyword aliases. */
 	private final Map<String, Set<String>> sharedAliases = new TreeMap<String, Set<String>>();
 	
+	/** Optional map of keywords to results, null if the keywords are the results. */
+	private final Map<String, List<String>> reduce;
+	
+	/** Compiled form of the aliases used by lookup, built on first use (and again after new aliases). */
+	private volatile Index index;
+	
+	/** Recall target of the MinHash candidate stage, 0 to evaluate the aliases of every lookup word (the default). */
+	private float candidateRecall;
+	
+	/** Corpus derived word weights compiled into the alias amounts, stopwords get no keywords. null to weigh every alias the same (the default). */
+	private WordWeights wordWeights;
+	
+	/** Counters of the candidate stage */
+	private final AtomicInteger candidateLookups = new AtomicInteger();
+	private final AtomicLong candidateKeywords = new AtomicLong();
+	
 	/** Construct the lookup with list of keywords. */
 	public KeywordLookup(Collection<String> keywords) {
 		this(keywords, DEFAULT_DELTA);
@@ -32,7 +73,17 @@ public class KeywordLookup {
 	
 	/** Construct the lookup with list of keywords. */
 	public KeywordLookup(Collection<String> keywords, float delta) {
+		this(keywords, null, delta);
+	}
+	
+	/** Construct the lookup with a map of keywords to results, lookups return the best result. */
+	public KeywordLookup(Map<String, List<String>> reduce, float delta) {
+		this(reduce.keySet(), reduce, delta);
+	}
+	
+	private KeywordLookup(Collection<String> keywords, Map<String, List<String>> reduce, float delta) {
 		this.delta = delta;
+		this.reduce = reduce;
 		
 		// alias all the words of the keywords
 		for(String keyword : keywords) {
@@ -44,14 +95,69 @@ public class KeywordLookup {
 		}
 	}
 	
+	/** Number of keywords. */
+	public int getKeywordCount() {
+		return this.keywords.size();
+	}
+	
+	/** 
+	 * Only score the keywords found by a MinHash (LSH) candidate stage, for keywords so many that a common word
+	 * would reach thousands of them. Each keyword's aliases are MinHashed into bands of CANDIDATE_ROWS rows, and a keyword 
+	 * is a candidate when the lookup words hold all the aliases of one of its bands. The number of bands is the least that finds
+	 * a keyword with half its aliases in the lookup words with the given probability (0 turns the stage off, below 1).
+	 * Results are scored exactly, but only the results of candidate keywords, so a lookup can miss the result it would find otherwise.
+	 */
+	public synchronized void setCandidateRecall(float recall) {
+		if(recall < 0 || recall >= 1) {
+			throw new IllegalArgumentException("Candidate recall must be at least 0 and below 1, got: " + recall);
+		}
+		this.candidateRecall = recall;
+		this.index = null;
+	}
+	
+	/** Compile the word weights into the index: each alias amount is scaled by its word's weight, and stopwords are not aliases at all. */
+	public synchronized void setWordWeights(WordWeights wordWeights) {
+		this.wordWeights = wordWeights;
+		this.index = null;
+	}
+	
+	/** Alias to keyword entries left out of the compiled index as stopwords, 0 without word weights. */
+	public int getStopwordEntries() {
+		return getIndex().stopwordEntries;
+	}
+	
+	/** Number of bands for the recall target: 1 - (1 - share^rows)^bands >= recall. */
+	static int getCandidateBands(float recall) {
+		double band = Math.pow(CANDIDATE_MATCH_SHARE, CANDIDATE_ROWS);
+		return Math.max(1, (int)Math.ceil(Math.log(1 - recall) / Math.log(1 - band)));
+	}
+	
+	/** Reset the candidate stage counters. */
+	public void resetCounters() {
+		this.candidateLookups.set(0);
+		this.candidateKeywords.set(0);
+	}
+	
+	/** Lookups done through the candidate stage, and the candidate keywords they scored. */
+	public int getCandidateLookups() {
+		return this.candidateLookups.get();
+	}
+	
+	public long getCandidateKeywords() {
+		return this.candidateKeywords.get();
+	}
+	
 	/** Add another alias to the lookup. */
-	public void addAlias(String alias, String keyword) {
+	public synchronized void addAlias(String alias, String keyword) {
 		
 		// some words appear way too often and should be ignored
 		if(Challenge.IGNORABLE_WORDS.contains(alias)) {
 			return;
 		}
 		
+		// recompile on the next lookup
+		this.index = null;
+		
 		if (sharedAliases.containsKey(alias)) {
 			// already present in the one2many list, so just add to it
 			sharedAliases.get(alias).add(keyword);
@@ -78,173 +184,678 @@ public class KeywordLookup {
 	}
 	
 	/** 
-	 * Do a multi word lookup and return the best result.
-	 * Reduce is used to reduce the result map further 
+	 * Do a multi word lookup and return the best result, or null if it is not significantly better than the 2nd best.
+	 * 
+	 * Only the best and 2nd best scores matter, so the title words are evaluated MaxScore style: 
+	 * words whose aliases can add the most to a result's score go first, each result reached is scored exactly,
+	 * and evaluation stops once the words left over can not add up to enough to change the best two scores
+	 * (so the answer, and the score and margin reported with it, are the same as scoring every result).
+	 * Results only reachable through common aliases (small share of the score each) are then never scored.
 	 */
-	public String lookup(String keyword, Map<String, List<String>> reduce) {
-		
-		// separate the words
-		List<String> words = Challenge.split(keyword);
-		
-		// attempt to locate each word using the aliases
-		// note: add positive value for found keywords
-		Map<String, Float> resultMap = new TreeMap<String, Float>();
-		for(String word : words) {
-			if (sharedAliases.containsKey(word)) {
-				// found in the many2one map
-				add(resultMap, sharedAliases.get(word), 1);
-				
-			} else if (singleAliases.containsKey(word)) {
-				// found in the one2one map
-				add(resultMap, singleAliases.get(word), 1);
+	public String lookup(String keyword) {
+		return lookupMatch(keyword).name;
+	}
+	
+	/** Do a multi word lookup (as lookup), also returning the best score and its margin over the 2nd best. */
+	public MatchResult lookupMatch(String keyword) {
+		Index index = getIndex();
+		if(index.candidates != null) {
+			Evaluation evaluation = index.evaluations.get();
+			evaluation.start();
+			return lookupCandidates(index, evaluation, keyword);
+		}
+		return lookupMatch(index, keyword, true);
+	}
+	
+	/** Do the lookup (as lookupMatch) scoring every result the words reach, without early termination or the candidate stage. For the checks. */
+	MatchResult lookupExhaustive(String keyword) {
+		return lookupMatch(getIndex(), keyword, false);
+	}
+	
+	/** Evaluate the words MaxScore style, or every word if terminate is not set. */
+	private MatchResult lookupMatch(Index index, String keyword, boolean terminate) {
+		Evaluation evaluation = index.evaluations.get();
+		evaluation.start();
+		
+		// distinct words that are aliases, with the number of times they appear
+		for(String word : Challenge.split(keyword)) {
+			Posting posting = index.postings.get(word);
+			if(posting != null) {
+				evaluation.addTerm(posting);
 			}
 		}
-
-		// check for missing words (ignore small words) (only check for longer keywords)
-		// note: reduce value by ratio of missing words from keyword
-		checkMissingWords(resultMap, words);
 		
-		// reduce the map
-		if(reduce != null) {
-			resultMap = reduce(resultMap, reduce);
+		// highest upper bound first, and the total bound of the terms from each position on
+		int termCount = evaluation.sortTerms();
+		Posting[] terms = evaluation.terms;
+		float[] remaining = evaluation.remaining;
+		remaining[termCount] = 0;
+		for(int i = termCount - 1; i >= 0; --i) {
+			remaining[i] = remaining[i + 1] + evaluation.getBound(terms[i]);
 		}
 		
-		// return the best result
-		return selectBestResult(resultMap);
+		for(int i = 0; i < termCount; ++i) {
+			
+			// results not reached yet only get score from the remaining terms
+			if(terminate && remaining[i] + BOUND_EPSILON < evaluation.getThreshold()) {
+				break;
+			}
+			
+			for(int possibleMatch : terms[i].keywords) {
+				for(int j = index.keywordResultOffsets[possibleMatch]; j < index.keywordResultOffsets[possibleMatch + 1]; ++j) {
+					evaluation.scoreResult(index.keywordResultIds[j]);
+				}
+			}
+		}
+		
+		return evaluation.getMatch();
 	}
 	
-	/** Checks match values for missing keywords and reduces the value by the ratio of found/total. */
-	private void checkMissingWords(Map<String, Float> resultMap, List<String> words) {
-		Set<String> sortedWords = new TreeSet<String>(words);
+	/** Lookup through the candidate stage: score the results of the keywords with a band held by the words. */
+	private MatchResult lookupCandidates(Index index, Evaluation evaluation, String keyword) {
+		Posting[] words = evaluation.terms;
+		int wordCount = 0;
+		for(String word : Challenge.split(keyword)) {
+			Posting posting = index.postings.get(word);
+			if(posting != null && evaluation.countWord(posting)) {
+				words[wordCount++] = posting;
+			}
+		}
 		
-		// check each match
-		for(String possibleMatch : resultMap.keySet()) {
-			
-			// get the full keyword list
-			List<String> matchWords = this.keywords.get(possibleMatch);
-			
-			// count the missing words
-			int missingCount = 0;
-			int totalCount = 0;
-			for(String matchWord : matchWords) {
-				totalCount += 1;
-				
-				if(sortedWords.contains(matchWord)) {
+		int count = 0;
+		for(int position = 0; position < wordCount; ++position) {
+			Posting posting = words[position];
+			int[] entries = index.candidates[posting.word];
+			if(entries == null) {
+				continue;
+			}
+			for(int i = 0; i < entries.length; i += 2) {
+				int other = entries[i + 1];
+				if(other >= 0 && !evaluation.hasWord(other)) {
 					continue;
 				}
-				
-				missingCount += 1;				
-			}
-			
-			// modify the results to have reduced value if missing parts of the key word
-			if(totalCount > 0 && missingCount > 0) {
-				// x *= 1 - (missing / total)
-				multi(resultMap, possibleMatch, 1f - missingCount * 1f / totalCount);
+				int possibleMatch = entries[i];
+				if(evaluation.addCandidate(possibleMatch)) {
+					count += 1;
+					for(int j = index.keywordResultOffsets[possibleMatch]; j < index.keywordResultOffsets[possibleMatch + 1]; ++j) {
+						evaluation.scoreResult(index.keywordResultIds[j]);
+					}
+				}
 			}
 		}
+		this.candidateLookups.incrementAndGet();
+		this.candidateKeywords.addAndGet(count);
+		return evaluation.getMatch();
 	}
 	
-	/** Find the first index such that 'items.contains(list.get(index))', or -1 if not found */
-	private static int findFirstIndex(List<String> list, List<String> items)
-	{
-		for(int index = 0; index < list.size(); ++index) {
-			String item = list.get(index);
-			if(items.contains(item)) {
-				return index;
+	/** Results that have an alias among the words, every result the lookup could give a score to. */
+	public Set<String> getCandidates(String keyword) {
+		Index index = getIndex();
+		Set<String> result = new HashSet<String>();
+		for(String word : Challenge.split(keyword)) {
+			Posting posting = index.postings.get(word);
+			if(posting == null) {
+				continue;
+			}
+			for(int possibleMatch : posting.keywords) {
+				for(int j = index.keywordResultOffsets[possibleMatch]; j < index.keywordResultOffsets[possibleMatch + 1]; ++j) {
+					result.add(index.results[index.keywordResultIds[j]]);
+				}
 			}
 		}
-		return -1;
+		return result;
 	}
 	
-	/** Find the last index such that 'items.contains(list.get(index))', or -1 if not found */
-	private static int findLastIndex(List<String> list, List<String> items)
-	{
-		for(int index = list.size() - 1; index >= 0; --index) {
-			String item = list.get(index);
-			if(items.contains(item)) {
-				return index;
+	/** Returns the compiled aliases, compiling them if needed. */
+	private Index getIndex() {
+		Index index = this.index;
+		if(index == null) {
+			synchronized (this) {
+				index = this.index;
+				if(index == null) {
+					index = new Index();
+					this.index = index;
+				}
 			}
 		}
-		return -1;
+		return index;
 	}
 	
-	/** Search the result map for the best result, and only return it if it is significantly better then the 2nd best result. */
-	private String selectBestResult(Map<String, Float> resultMap) {
+	/** 
+	 * Compiled aliases, keywords and results are numbered and the keyword to result fan out is held 
+	 * in flat tables (offsets into the id and weight arrays, the entries of keyword k are at offsets[k] to offsets[k + 1]).
+	 */
+	private class Index {
+		
+		/** Every word of the keywords, with the keywords it is an alias of (none for ignored words). */
+		final Map<String, Posting> postings = new HashMap<String, Posting>();
+		
+		/** Keyword words by keyword id, as word ids (repeated if the word is). */
+		final int[][] keywordWords;
+		
+		/** Results by result id. */
+		final String[] results;
+		
+		/** Keyword id to the results it reduces to, with the share of the keyword score each gets. */
+		final int[] keywordResultOffsets;
+		final int[] keywordResultIds;
+		
+		/** Result id to the keywords that reduce to it in keyword order (repeated if listed more than once), with the share of each keyword score. */
+		final int[] resultKeywordOffsets;
+		final int[] resultKeywordIds;
+		final float[] resultKeywordWeights;
 		
-		// find best and 2nd best matches
-		float bestValue1 = 0;
-		float bestValue2 = 0;
-		String bestKeyword1 = null;
-		String bestKeyword2 = null;
+		/** 
+		 * Candidate stage, null if not used: the aliases of each keyword by word id, and by word id the bands led by the word
+		 * (the band's least common alias) as pairs of keyword id and the band's other alias (-1 for a band of one alias).
+		 */
+		final int[][] keywordAliases;
+		final int[][] candidates;
 		
-		for(Map.Entry<String, Float> entry : resultMap.entrySet()) {
+		/** Alias amounts by word id, for the candidate stage. */
+		final float[] amounts;
+		
+		/** Alias to keyword entries dropped as stopwords. */
+		int stopwordEntries;
+		
+		/** Reusable scoring state, one per thread. */
+		final ThreadLocal<Evaluation> evaluations = new ThreadLocal<Evaluation>() {
+			@Override
+			protected Evaluation initialValue() {
+				return new Evaluation(Index.this);
+			}
+		};
+		
+		/** Build from the alias maps, must hold the lookup lock. */
+		Index() {
 			
-			float entry_value = entry.getValue();
-			String entry_keyword = entry.getKey();
+			// number the keywords and their words
+			Map<String, Integer> keywordIds = new HashMap<String, Integer>();
+			this.keywordWords = new int[keywords.size()][];
+			for(Map.Entry<String, List<String>> entry : keywords.entrySet()) {
+				int id = keywordIds.size();
+				keywordIds.put(entry.getKey(), id);
+				this.keywordWords[id] = new int[entry.getValue().size()];
+				for(int i = 0; i < entry.getValue().size(); ++i) {
+					this.keywordWords[id][i] = getPosting(entry.getValue().get(i)).word;
+				}
+			}
 			
-			if (entry_value > bestValue1) {
-				// found a best (also move old 1st to 2nd) 
-				bestValue2 = bestValue1;
-				bestValue1 = entry_value;
-				bestKeyword2 = bestKeyword1;
-				bestKeyword1 = entry_keyword;
-				
-			} else if (entry_value > bestValue2) {
-				// found a 2nd best
-				bestValue2 = entry_value;
-				bestKeyword2 = entry_keyword;
+			// the aliases (added after construction, these need not be keyword words)
+			for(Map.Entry<String, String> entry : singleAliases.entrySet()) {
+				getPosting(entry.getKey()).setKeywords(Collections.singleton(entry.getValue()), keywordIds);
+			}
+			for(Map.Entry<String, Set<String>> entry : sharedAliases.entrySet()) {
+				getPosting(entry.getKey()).setKeywords(entry.getValue(), keywordIds);
+			}
+			
+			// stopwords are found (they count as present words) but are no alias, so they do not fan out to their keywords
+			if(wordWeights != null) {
+				for(Map.Entry<String, Posting> entry : this.postings.entrySet()) {
+					Posting posting = entry.getValue();
+					float weight = wordWeights.getWeight(entry.getKey());
+					if(weight == 0) {
+						this.stopwordEntries += posting.keywords.length;
+						posting.keywords = new int[0];
+						posting.amount = 0;
+					} else {
+						posting.amount *= weight;
+					}
+				}
+			}
+			
+			// number the results, each keyword is its own result without reduce
+			Map<String, Integer> resultIds = new LinkedHashMap<String, Integer>();
+			List<List<String>> keywordResults = new ArrayList<List<String>>();
+			for(String keyword : keywords.keySet()) {
+				List<String> results = reduce == null ? Collections.singletonList(keyword) : reduce.get(keyword);
+				keywordResults.add(results);
+				for(String result : results) {
+					if(!resultIds.containsKey(result)) {
+						resultIds.put(result, resultIds.size());
+					}
+				}
+			}
+			this.results = resultIds.keySet().toArray(new String[resultIds.size()]);
+			
+			// keyword to results
+			int entries = 0;
+			for(List<String> results : keywordResults) {
+				entries += results.size();
+			}
+			this.keywordResultOffsets = new int[keywordResults.size() + 1];
+			this.keywordResultIds = new int[entries];
+			int[] resultCounts = new int[this.results.length];
+			int offset = 0;
+			for(int keyword = 0; keyword < keywordResults.size(); ++keyword) {
+				this.keywordResultOffsets[keyword] = offset;
+				for(String result : keywordResults.get(keyword)) {
+					int id = resultIds.get(result);
+					this.keywordResultIds[offset++] = id;
+					resultCounts[id] += 1;
+				}
+			}
+			this.keywordResultOffsets[keywordResults.size()] = offset;
+			
+			// result to keywords, the transpose
+			this.resultKeywordOffsets = new int[this.results.length + 1];
+			for(int result = 0; result < this.results.length; ++result) {
+				this.resultKeywordOffsets[result + 1] = this.resultKeywordOffsets[result] + resultCounts[result];
+			}
+			this.resultKeywordIds = new int[entries];
+			this.resultKeywordWeights = new float[entries];
+			int[] next = Arrays.copyOf(this.resultKeywordOffsets, this.results.length);
+			for(int keyword = 0; keyword < keywordResults.size(); ++keyword) {
+				int count = this.keywordResultOffsets[keyword + 1] - this.keywordResultOffsets[keyword];
+				for(int j = this.keywordResultOffsets[keyword]; j < this.keywordResultOffsets[keyword + 1]; ++j) {
+					int position = next[this.keywordResultIds[j]]++;
+					this.resultKeywordIds[position] = keyword;
+					this.resultKeywordWeights[position] = 1f / count;
+				}
+			}
+			
+			// upper bound of what one occurrence of the alias can add to any single result
+			float[] shares = new float[this.results.length];
+			for(Posting posting : this.postings.values()) {
+				for(int keyword : posting.keywords) {
+					int count = this.keywordResultOffsets[keyword + 1] - this.keywordResultOffsets[keyword];
+					for(int j = this.keywordResultOffsets[keyword]; j < this.keywordResultOffsets[keyword + 1]; ++j) {
+						shares[this.keywordResultIds[j]] += posting.amount / count;
+					}
+				}
+				for(int keyword : posting.keywords) {
+					for(int j = this.keywordResultOffsets[keyword]; j < this.keywordResultOffsets[keyword + 1]; ++j) {
+						posting.bound = Math.max(posting.bound, shares[this.keywordResultIds[j]]);
+						shares[this.keywordResultIds[j]] = 0;
+					}
+				}
+			}
+			
+			if(candidateRecall > 0) {
+				this.amounts = new float[this.postings.size()];
+				for(Posting posting : this.postings.values()) {
+					this.amounts[posting.word] = posting.amount;
+				}
+				this.keywordAliases = buildKeywordAliases();
+				this.candidates = buildCandidates(getCandidateBands(candidateRecall));
+			} else {
+				this.amounts = null;
+				this.keywordAliases = null;
+				this.candidates = null;
 			}
 		}
 		
-		// return the best result if it is significantly better then the 2nd best
-		if(bestValue1 > bestValue2 + this.delta) {
-			return bestKeyword1;
+		/** The distinct aliases of each keyword, the transpose of the postings. */
+		private int[][] buildKeywordAliases() {
+			int[] counts = new int[this.keywordWords.length];
+			for(Posting posting : this.postings.values()) {
+				for(int keyword : posting.keywords) {
+					counts[keyword] += 1;
+				}
+			}
+			int[][] result = new int[this.keywordWords.length][];
+			for(int keyword = 0; keyword < result.length; ++keyword) {
+				result[keyword] = new int[counts[keyword]];
+				counts[keyword] = 0;
+			}
+			for(Posting posting : this.postings.values()) {
+				for(int keyword : posting.keywords) {
+					result[keyword][counts[keyword]++] = posting.word;
+				}
+			}
+			return result;
 		}
 		
-		// no good match
-		return null;	
-	}
-	
-	/** Add a set of keys, dividing the value equally */
-	private static void add(Map<String, Float> map, Collection<String> keys, float amount) {
-		// no divide by zero's please
-		if(keys.size() == 0)
-			return;
+		/** MinHash each keyword's aliases into the bands, and file each distinct band under its least common alias. */
+		private int[][] buildCandidates(int bands) {
+			int[] frequencies = new int[this.postings.size()];
+			for(Posting posting : this.postings.values()) {
+				frequencies[posting.word] = posting.keywords.length;
+			}
+			int[] seeds = new int[bands * CANDIDATE_ROWS];
+			Random random = new Random(CANDIDATE_SEED);
+			for(int i = 0; i < seeds.length; ++i) {
+				seeds[i] = random.nextInt();
+			}
+			
+			List<List<Integer>> entries = new ArrayList<List<Integer>>();
+			for(int word = 0; word < frequencies.length; ++word) {
+				entries.add(null);
+			}
+			Set<Long> bandKeys = new HashSet<Long>();
+			for(int keyword = 0; keyword < this.keywordAliases.length; ++keyword) {
+				int[] aliases = this.keywordAliases[keyword];
+				if(aliases.length == 0) {
+					continue;
+				}
+				bandKeys.clear();
+				for(int band = 0; band < bands; ++band) {
+					// alias with the least hash for each row of the band
+					int first = minHash(aliases, seeds[band * CANDIDATE_ROWS]);
+					int second = minHash(aliases, seeds[band * CANDIDATE_ROWS + 1]);
+					
+					// lead with the least common alias, a common one then leads few bands
+					int lead = first;
+					int other = second;
+					if(frequencies[second] < frequencies[first] || (frequencies[second] == frequencies[first] && second < first)) {
+						lead = second;
+						other = first;
+					}
+					if(other == lead) {
+						other = -1;
+					}
+					if(!bandKeys.add(((long)lead << 32) | (other & 0xffffffffL))) {
+						continue;
+					}
+					List<Integer> list = entries.get(lead);
+					if(list == null) {
+						list = new ArrayList<Integer>();
+						entries.set(lead, list);
+					}
+					list.add(keyword);
+					list.add(other);
+				}
+			}
+			
+			int[][] result = new int[frequencies.length][];
+			for(int word = 0; word < result.length; ++word) {
+				List<Integer> list = entries.get(word);
+				if(list != null) {
+					result[word] = new int[list.size()];
+					for(int i = 0; i < list.size(); ++i) {
+						result[word][i] = list.get(i);
+					}
+				}
+			}
+			return result;
+		}
 		
-		amount = amount / keys.size(); 
-		for(String key : keys) {
-			add(map, key, amount);
+		/** The posting of the word, numbering a new word. */
+		private Posting getPosting(String word) {
+			Posting posting = this.postings.get(word);
+			if(posting == null) {
+				posting = new Posting(this.postings.size());
+				this.postings.put(word, posting);
+			}
+			return posting;
 		}
 	}
 	
-	/** Add a single key with a set amount */
-	private static void add(Map<String, Float> map, String key, float amount) {
-		if(map.containsKey(key)) {
-			map.put(key, amount + map.get(key));
-		} else {
-			map.put(key, amount);
+	/** Alias of the keyword with the least hash for the seed (MinHash). */
+	private static int minHash(int[] aliases, int seed) {
+		int result = aliases[0];
+		int least = Integer.MAX_VALUE;
+		for(int alias : aliases) {
+			int hash = mix(alias ^ seed);
+			if(hash < least || (hash == least && alias < result)) {
+				least = hash;
+				result = alias;
+			}
 		}
+		return result;
 	}
 	
-	/** Mutliply a single key with a set amount */
-	private static void multi(Map<String, Float> map, String key, float amount) {
-		if(map.containsKey(key)) {
-			map.put(key, amount * map.get(key));
-		} else {
-			// nothing to multiply
+	/** Murmur3 finalizer, a good 32 bit hash of an int. */
+	private static int mix(int value) {
+		value ^= value >>> 16;
+		value *= 0x85ebca6b;
+		value ^= value >>> 13;
+		value *= 0xc2b2ae35;
+		value ^= value >>> 16;
+		return value;
+	}
+	
+	/** Compiled word. */
+	private static class Posting {
+		
+		/** Word id. */
+		final int word;
+		
+		/** Ids of the keywords the word is an alias of. */
+		int[] keywords = new int[0];
+		
+		/** Value each keyword gets per occurrence of the alias, split equally between the keywords. */
+		float amount;
+		
+		/** Most one occurrence of the alias can add to a single result's score. */
+		float bound;
+		
+		Posting(int word) {
+			this.word = word;
+		}
+		
+		void setKeywords(Collection<String> keywords, Map<String, Integer> keywordIds) {
+			this.keywords = new int[keywords.size()];
+			int i = 0;
+			for(String keyword : keywords) {
+				this.keywords[i++] = keywordIds.get(keyword);
+			}
+			this.amount = 1f / keywords.size();
 		}
 	}
 	
-	/** Reduce the map using a 2nd mapping. */
-	private static Map<String, Float> reduce(Map<String, Float> map, Map<String, List<String>> reduce) {
-		Map<String, Float> result = new TreeMap<String, Float>();
+	/** 
+	 * Scoring state for one lookup, keeps the best and 2nd best results. 
+	 * Reused by the thread for every lookup, entries only count if their stamp is the current lookup's.
+	 */
+	private class Evaluation {
+		
+		private final Index index;
 		
-		for(Map.Entry<String, Float> entry : map.entrySet()) {
-			String key = entry.getKey();
-			float value = entry.getValue();
-			add(result, reduce.get(key), value);
+		/** Stamp of the current lookup. */
+		private int lookupStamp;
+		
+		/** Words in the lookup, by word id, and the times each is in it (only kept for the terms and by the candidate stage). */
+		private final int[] wordStamps;
+		private final int[] wordCounts;
+		
+		/** Distinct lookup words that are aliases (terms) in the order found, and the term bounds summed from each position on. */
+		final Posting[] terms;
+		final float[] remaining;
+		private int termCount;
+		
+		/** Sum of the alias shares found for each keyword, by keyword id. */
+		private final float[] keywordSums;
+		private final int[] keywordSumStamps;
+		
+		/** Keyword scores calculated so far, by keyword id. */
+		private final float[] keywordScores;
+		private final int[] keywordScoreStamps;
+		
+		/** Results scored so far, by result id. */
+		private final int[] resultStamps;
+		
+		/** Candidate keywords found so far, by keyword id. */
+		private final int[] candidateStamps;
+		
+		/** best and 2nd best matches */
+		private float bestValue1;
+		private float bestValue2;
+		private int bestResult1;
+		
+		Evaluation(Index index) {
+			this.index = index;
+			this.wordStamps = new int[index.postings.size()];
+			this.wordCounts = new int[index.postings.size()];
+			this.terms = new Posting[index.postings.size()];
+			this.remaining = new float[index.postings.size() + 1];
+			this.keywordSums = new float[index.keywordWords.length];
+			this.keywordSumStamps = new int[index.keywordWords.length];
+			this.keywordScores = new float[index.keywordWords.length];
+			this.keywordScoreStamps = new int[index.keywordWords.length];
+			this.resultStamps = new int[index.results.length];
+			this.candidateStamps = index.candidates != null ? new int[index.keywordWords.length] : null;
 		}
 		
-		return result;
+		/** Start a new lookup. */
+		void start() {
+			this.lookupStamp += 1;
+			if(this.lookupStamp == 0) {
+				// wrapped around, clear the old stamps
+				Arrays.fill(this.wordStamps, 0);
+				Arrays.fill(this.keywordSumStamps, 0);
+				Arrays.fill(this.keywordScoreStamps, 0);
+				Arrays.fill(this.resultStamps, 0);
+				if(this.candidateStamps != null) {
+					Arrays.fill(this.candidateStamps, 0);
+				}
+				this.lookupStamp = 1;
+			}
+			this.bestValue1 = 0;
+			this.bestValue2 = 0;
+			this.bestResult1 = -1;
+			this.termCount = 0;
+		}
+		
+		/** Add a lookup word (as addWord), a word that is an alias of some keyword is also a term and its occurrences are counted. */
+		void addTerm(Posting posting) {
+			boolean found = this.wordStamps[posting.word] == this.lookupStamp;
+			addWord(posting);
+			if(posting.keywords.length == 0) {
+				return;
+			}
+			if(!found) {
+				this.terms[this.termCount++] = posting;
+				this.wordCounts[posting.word] = 0;
+			}
+			this.wordCounts[posting.word] += 1;
+		}
+		
+		/** Most the term can add to a single result's score. */
+		float getBound(Posting term) {
+			return this.wordCounts[term.word] * term.bound;
+		}
+		
+		/** Sort the terms by their bound, highest first (stable, titles only have a few terms), returns the number of terms. */
+		int sortTerms() {
+			for(int i = 1; i < this.termCount; ++i) {
+				Posting term = this.terms[i];
+				float bound = getBound(term);
+				int j = i;
+				for(; j > 0 && getBound(this.terms[j - 1]) < bound; --j) {
+					this.terms[j] = this.terms[j - 1];
+				}
+				this.terms[j] = term;
+			}
+			return this.termCount;
+		}
+		
+		/** Add a lookup word, each keyword it is an alias of gets the alias share. */
+		void addWord(Posting posting) {
+			this.wordStamps[posting.word] = this.lookupStamp;
+			for(int keyword : posting.keywords) {
+				if(this.keywordSumStamps[keyword] != this.lookupStamp) {
+					this.keywordSumStamps[keyword] = this.lookupStamp;
+					this.keywordSums[keyword] = 0;
+				}
+				this.keywordSums[keyword] += posting.amount;
+			}
+		}
+		
+		/** Add a lookup word for the candidate stage, only counted (keyword sums are worked out when scored), returns true if it is new. */
+		boolean countWord(Posting posting) {
+			if(this.wordStamps[posting.word] != this.lookupStamp) {
+				this.wordStamps[posting.word] = this.lookupStamp;
+				this.wordCounts[posting.word] = 1;
+				return true;
+			}
+			this.wordCounts[posting.word] += 1;
+			return false;
+		}
+		
+		/** Returns true if the word is in the lookup. */
+		boolean hasWord(int word) {
+			return this.wordStamps[word] == this.lookupStamp;
+		}
+		
+		/** Mark the keyword as a candidate, returns true if it was not one yet. */
+		boolean addCandidate(int keyword) {
+			if(this.candidateStamps[keyword] == this.lookupStamp) {
+				return false;
+			}
+			this.candidateStamps[keyword] = this.lookupStamp;
+			return true;
+		}
+		
+		/** 
+		 * A result scoring at or below this can not change the best two scores, so neither the answer nor its score and margin.
+		 * (Stopping once nothing can beat the best by delta would keep the answer, but leave the margin of a no match a guess.)
+		 */
+		float getThreshold() {
+			return this.bestValue2;
+		}
+		
+		/** Return the best result if it is significantly better then the 2nd best, with the best score and margin. */
+		MatchResult getMatch() {
+			if(this.bestValue1 > this.bestValue2 + delta) {
+				return new MatchResult(this.index.results[this.bestResult1], this.bestValue1, this.bestValue1 - this.bestValue2);
+			}
+			
+			// no good match
+			return new MatchResult(null, this.bestValue1, this.bestValue1 - this.bestValue2);
+		}
+		
+		/** Score the result (once) and keep it if it is one of the best two. */
+		void scoreResult(int result) {
+			if(this.resultStamps[result] == this.lookupStamp) {
+				return;
+			}
+			this.resultStamps[result] = this.lookupStamp;
+			
+			// keyword score is divided equally between its results
+			float value = 0;
+			for(int j = this.index.resultKeywordOffsets[result]; j < this.index.resultKeywordOffsets[result + 1]; ++j) {
+				value += scoreKeyword(this.index.resultKeywordIds[j]) * this.index.resultKeywordWeights[j];
+			}
+			
+			if (value > this.bestValue1) {
+				// found a best (also move old 1st to 2nd) 
+				this.bestValue2 = this.bestValue1;
+				this.bestValue1 = value;
+				this.bestResult1 = result;
+				
+			} else if (value > this.bestValue2) {
+				// found a 2nd best
+				this.bestValue2 = value;
+			}
+		}
+		
+		/** Score a keyword, each lookup word that is an alias of the keyword adds its share, reduced by the ratio of missing words. */
+		private float scoreKeyword(int keyword) {
+			if(this.keywordScoreStamps[keyword] == this.lookupStamp) {
+				return this.keywordScores[keyword];
+			}
+			
+			// alias shares for the words found (summed here for the candidate stage, which does not add them per word)
+			float value = this.keywordSumStamps[keyword] == this.lookupStamp ? this.keywordSums[keyword] : 0;
+			if(this.index.keywordAliases != null) {
+				for(int alias : this.index.keywordAliases[keyword]) {
+					if(this.wordStamps[alias] == this.lookupStamp) {
+						value += this.wordCounts[alias] * this.index.amounts[alias];
+					}
+				}
+			}
+			
+			// check for missing words, reduce value by the ratio of found/total
+			if(value > 0) {
+				int missingCount = 0;
+				int totalCount = 0;
+				for(int word : this.index.keywordWords[keyword]) {
+					totalCount += 1;
+					if(this.wordStamps[word] != this.lookupStamp) {
+						missingCount += 1;
+					}
+				}
+				
+				// x *= 1 - (missing / total)
+				if(totalCount > 0 && missingCount > 0) {
+					value *= 1f - missingCount * 1f / totalCount;
+				}
+			}
+			
+			this.keywordScoreStamps[keyword] = this.lookupStamp;
+			this.keywordScores[keyword] = value;
+			return value;
+		}
 	}
 }
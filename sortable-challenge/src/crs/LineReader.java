@@ -0,0 +1,124 @@
+package crs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Line reader working on the raw bytes so the byte offset of every line in the (uncompressed) input is known.
+ * Lines end with '\n', a trailing '\r' is removed. The bytes are decoded with the platform charset, same as FileReader.
+ */
+public class LineReader {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final InputStream input;
+	private final Charset charset = Charset.defaultCharset();
+
+	/** Read buffer. */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	/** Current line bytes, grows for long lines. */
+	private byte[] line = new byte[256];
+
+	/** Byte offset of the end of the last line returned. */
+	private long offset;
+
+	/** False if the last line returned had no line ending (end of input part way through a line). */
+	private boolean complete = true;
+
+	/** Construct the reader, offset is the byte offset the input is already positioned at. */
+	public LineReader(InputStream input, long offset) {
+		this.input = input;
+		this.offset = offset;
+	}
+
+	/** Skip bytes to get to the offset, works for compressed inputs too (by reading through them). */
+	public static void skipFully(InputStream input, long count) throws IOException {
+		while(count > 0) {
+			long skipped = input.skip(count);
+			if(skipped <= 0) {
+				// skip is allowed to do nothing, fall back to a read to check for end of input
+				if(input.read() < 0) {
+					throw new IOException("Unexpected end of input, " + count + " bytes short");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/** Returns the next line without the line ending, or null at the end of the input. */
+	public String readLine() throws IOException {
+		int length = 0;
+		long consumed = 0;
+
+		while(true) {
+			if(this.position == this.limit) {
+				this.limit = this.input.read(this.buffer);
+				this.position = 0;
+				if(this.limit <= 0) {
+					// end of input
+					this.limit = 0;
+					if(consumed == 0) {
+						return null;
+					}
+					this.complete = false;
+					this.offset += consumed;
+					return decode(length);
+				}
+			}
+
+			// scan the buffer for the line end
+			int start = this.position;
+			int end = start;
+			while(end < this.limit && this.buffer[end] != '\n') {
+				++end;
+			}
+
+			// copy this part of the line
+			int size = end - start;
+			if(length + size > this.line.length) {
+				byte[] bigger = new byte[Math.max(this.line.length * 2, length + size)];
+				System.arraycopy(this.line, 0, bigger, 0, length);
+				this.line = bigger;
+			}
+			System.arraycopy(this.buffer, start, this.line, length, size);
+			length += size;
+			consumed += size;
+
+			if(end < this.limit) {
+				// found the line end
+				this.position = end + 1;
+				this.complete = true;
+				this.offset += consumed + 1;
+				return decode(length);
+			}
+			this.position = end;
+		}
+	}
+
+	/** Convert the line bytes into a string, removing a trailing '\r'. */
+	private String decode(int length) {
+		if(length > 0 && this.line[length - 1] == '\r') {
+			--length;
+		}
+		return new String(this.line, 0, length, this.charset);
+	}
+
+	/** Byte offset just past the last line returned. */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/** Returns false if the last line returned was cut off by the end of the input. */
+	public boolean isLineComplete() {
+		return this.complete;
+	}
+
+	public void close() throws IOException {
+		this.input.close();
+	}
+}
@@ -1,14 +1,7 @@
 package crs;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -19,139 +12,68 @@ public class Listing {
 	/** Raw json object is echoed in the final output*/
 	public final JSONObject jsonObject;
 	
-	/** Raw data values */
+	/** Position of the listing in the input file (0 based line index), used to keep the input order in the output. */
+	public final long ordinal;
+	
+	/** Raw data values, the manufacturer and currency are the dictionaries' shared instances if they have ids. */
 	public final String title;
 	public final String manufacturer;
 	public final String currency;
 	public final String price;
 	
-	/** Construct the listing from the json object. */
+	/** Ids of the manufacturer and currency in the dictionaries the listing was read with, -1 without (or with full) dictionaries. */
+	public final int manufacturerId;
+	public final int currencyId;
+	
+	/** Construct the listing from the json object, the input position is not known. */
 	public Listing(JSONObject object) throws JSONException {
+		this(object, -1);
+	}
+	
+	/** Construct the listing from the json object, without dictionaries. */
+	public Listing(JSONObject object, long ordinal) throws JSONException {
+		this(object, ordinal, null);
+	}
+	
+	/** Construct the listing from the json object, interning the manufacturer and currency in the dictionaries (null for none). */
+	public Listing(JSONObject object, long ordinal, ListingDictionaries dictionaries) throws JSONException {
 		this.jsonObject = object;
+		this.ordinal = ordinal;
 		
 		// get the raw data
 		this.title = object.getString("title");						// required
-		this.manufacturer = object.getString("manufacturer");		// required
-		this.currency = object.getString("currency");				// required 
+		String manufacturer = object.getString("manufacturer");		// required
+		String currency = object.getString("currency");				// required 
 		this.price = object.getString("price");						// required
+		
+		// the dictionaries' shared instances
+		this.manufacturerId = dictionaries == null ? -1 : dictionaries.manufacturers.intern(manufacturer);
+		this.currencyId = dictionaries == null ? -1 : dictionaries.currencies.intern(currency);
+		this.manufacturer = this.manufacturerId < 0 ? manufacturer : dictionaries.manufacturers.get(this.manufacturerId);
+		this.currency = this.currencyId < 0 ? currency : dictionaries.currencies.get(this.currencyId);
 	}
 	
+	/** Json line parser for listings files without dictionaries, the listing ordinal is its line index. */
+	public static final JsonLineReader<Listing> READER = new JsonLineReader<Listing>() {
+		protected Listing parse(JSONObject object, long lineNumber) throws JSONException {
+			return new Listing(object, lineNumber - 1);
+		}
+	};
+	
 	/** Simple listings file reader, throws IOException for all file and json format errors. No error recovery. */
 	public static List<Listing> loadListings(String filename) throws IOException {
-		List<Listing> result = new ArrayList<Listing>();
-		
-		System.out.println("Reading listings file: " + filename);
-		
-		// simple line by line file read
-		BufferedReader reader = new BufferedReader(new FileReader(filename));
-		for(String line = reader.readLine(); line != null; line = reader.readLine()) {
-			try {
-				result.add(new Listing(new JSONObject(line)));
-			} catch (JSONException exception) {
-				reader.close();
-				throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
-			}
-		}
-		reader.close();
-		
-		return result;
+		return loadListings(filename, null);
 	}
 	
-	/** Does the listing matching loop. */
-	public static void matchListings(List<Listing> listings, final Map<String, Product> productMap, final ManufacturerLookup manufacturerLookup) {
-		
-		System.out.println("Matching listings...");
-		
-//		// single threaded implementation
-//		for(Listing listing : listings) {
-//			
-//			// match product name
-//			String productName = manufacturerLookup.lookupProductName(listing);
-//			if(productName == null) {
-//				continue;
-//			}
-//			
-//			// add to the product's listings
-//			Product product = productMap.get(productName);
-//			if(product == null) {
-//				continue;
-//			}
-//			
-//			product.listings.add(listing);
-//		}
-		
-		// mutli-threaded mostly because it was easy to implement for this algorithm 
-		// and does speed up the matching a lot for multi-core machines.
-		
-		// make a thread safe copy to use as the source (linked list since we are removing from the front)
-		final List<Listing> source = Collections.synchronizedList(new LinkedList<Listing>(listings));
+	/** 
+	 * Parallel listings file reader, throws IOException for all file errors. 
+	 * Bad lines go to the quarantine if there is one, otherwise the first bad line throws IOException.
+	 * The listings get dictionaries of their own.
+	 */
+	public static List<Listing> loadListings(String filename, Quarantine quarantine) throws IOException {
 		
-		// objects used to signal that all threads are done
-		final Object signal = new Object();
-		final AtomicInteger remainingThreads = new AtomicInteger();
-		
-		for(int i = 0; i < Challenge.THREADS; ++i) {
-			
-			// another thread added
-			remainingThreads.incrementAndGet();
-			
-			// very simple threads implementation of the above code
-			Runnable runner = new Runnable() {
-				public void run() {
-					while(true) {
-						
-						// remove head items until collection is empty
-						Listing listing;
-						try {
-							listing = source.remove(0);
-						} catch (IndexOutOfBoundsException e) {
-							// lists throw IndexOutOfBoundsException when remove is called on an empty list
-							// we will use that as a signal for done
-							break;
-						}
-					
-						// match product name
-						String productName = manufacturerLookup.lookupProductName(listing);
-						if(productName == null) {
-							continue;
-						}
-											
-						Product product = productMap.get(productName);
-						if(product == null) {
-							continue;
-						}
-						
-						// add to the product's listings
-						// product.listings collection is thread safe
-						product.listings.add(listing);
-					}
-					
-					// signal when all threads are done
-					int remaining = remainingThreads.decrementAndGet();
-					if(remaining <= 0) {
-						synchronized (signal) {
-							signal.notify();
-						}
-					}
-				}
-			};
-			
-			// run the matcher
-			Thread thread = new Thread(runner);
-			thread.start();
-		}
+		System.out.println("Reading listings file: " + filename);
 		
-		// wait for all threads to finish
-		while(remainingThreads.get() > 0) {
-			try {
-				synchronized (signal) {
-					signal.wait();
-				}
-			} catch (InterruptedException e) {
-				// dont care, try again
-			}
-		}
+		return new ListingDictionaries().reader.read(filename, quarantine);
 	}
-
-	
 }
@@ -0,0 +1,118 @@
+package crs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory for a ListingStore, handed out in large chunks: heap buffers, direct (off heap) buffers,
+ * or regions of a memory mapped scratch file, so a batch of any size keeps the heap small.
+ * The arena is closed explicitly (by the store's close), which drops the chunks and deletes the scratch file (on exit if it is still mapped).
+ * Java gives no way to free a direct or mapped buffer on the spot, their memory is returned once the dropped buffers are collected.
+ */
+public class ListingArena implements Closeable {
+
+	/** Where the chunks live. */
+	public enum Type {
+
+		/** Heap byte buffers. */
+		HEAP,
+
+		/** Direct byte buffers, limited by -XX:MaxDirectMemorySize. */
+		DIRECT,
+
+		/** Memory mapped scratch file, paged by the operating system. */
+		MAPPED;
+
+		/** Command line name. */
+		public String getName() {
+			return name().toLowerCase();
+		}
+
+		/** Parse a command line name, throws IllegalArgumentException for unknown names. */
+		public static Type parse(String name) {
+			for(Type type : values()) {
+				if(type.getName().equalsIgnoreCase(name)) {
+					return type;
+				}
+			}
+			throw new IllegalArgumentException("Unknown listing store: " + name);
+		}
+	}
+
+	private final Type type;
+
+	/** Chunks handed out. */
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private long allocated;
+
+	/** Scratch file of a mapped arena, null for the others. */
+	private final File file;
+	private final RandomAccessFile scratch;
+
+	private boolean closed;
+
+	/** Construct an arena, a mapped arena creates its scratch file in the directory (null for the default temporary directory). */
+	public ListingArena(Type type, File directory) throws IOException {
+		this.type = type;
+		if(type == Type.MAPPED) {
+			this.file = File.createTempFile("listings", ".arena", directory);
+			this.file.deleteOnExit();
+			this.scratch = new RandomAccessFile(this.file, "rw");
+		} else {
+			this.file = null;
+			this.scratch = null;
+		}
+	}
+
+	public Type getType() {
+		return this.type;
+	}
+
+	/** New zeroed chunk of the size, owned by the arena. */
+	public synchronized ByteBuffer allocate(int size) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("Listing arena is closed");
+		}
+		ByteBuffer chunk;
+		if(this.type == Type.DIRECT) {
+			chunk = ByteBuffer.allocateDirect(size);
+		} else if(this.type == Type.MAPPED) {
+			// mapping past the end grows the file
+			chunk = this.scratch.getChannel().map(FileChannel.MapMode.READ_WRITE, this.allocated, size);
+		} else {
+			chunk = ByteBuffer.allocate(size);
+		}
+		this.chunks.add(chunk);
+		this.allocated += size;
+		return chunk;
+	}
+
+	/** Bytes handed out. */
+	public synchronized long getAllocated() {
+		return this.allocated;
+	}
+
+	/** 
+	 * Drop the chunks and delete the scratch file, the chunks must not be used afterwards (the store drops its references first).
+	 * A mapped file can not be deleted on Windows until its buffers are collected, it is then left to the delete on exit.
+	 */
+	public synchronized void close() throws IOException {
+		if(this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.chunks.clear();
+		if(this.scratch != null) {
+			this.scratch.close();
+			if(!this.file.delete()) {
+				System.out.println("Listing store scratch file " + this.file + " is still mapped, it is deleted on exit");
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package crs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Manufacturer and currency dictionaries of one run's listings (see ValueDictionary), and the reader parsing listings into them.
+ * A listing's ids only mean something to the dictionaries it was read with. Each dictionary stops at its capacity and later values 
+ * get no id, so a run that never ends (follow mode) does not grow them, or the manufacturer cache indexed by the ids, without bound.
+ */
+public class ListingDictionaries {
+
+	/** Default most distinct values in each dictionary. */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** Distinct manufacturer and currency values of the listings read. */
+	public final ValueDictionary manufacturers;
+	public final ValueDictionary currencies;
+
+	/** Json line parser for listings files into the dictionaries, the listing ordinal is its line index. */
+	public final JsonLineReader<Listing> reader = new JsonLineReader<Listing>() {
+		protected Listing parse(JSONObject object, long lineNumber) throws JSONException {
+			return new Listing(object, lineNumber - 1, ListingDictionaries.this);
+		}
+	};
+
+	/** Construct empty dictionaries of the default capacity. */
+	public ListingDictionaries() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/** Construct empty dictionaries of the capacity. */
+	public ListingDictionaries(int capacity) {
+		this.manufacturers = new ValueDictionary(capacity);
+		this.currencies = new ValueDictionary(capacity);
+	}
+}
@@ -0,0 +1,297 @@
+package crs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Listing index saved with a run, used to re-match only the listings a catalog change can affect.
+ * For each manufacturer it keeps a fingerprint of its products and the listings it is a candidate for
+ * (one of its name words is in the listing's manufacturer or title), which covers the listings that resolved to it
+ * and those it was ambiguous with. For each product it keeps the listings matched to it.
+ *
+ * A listing's answer can only change if one of its candidate manufacturers was added, removed or had its products changed:
+ * the manufacturer lookup only scores the candidates, and the model lookup only sees the resolved manufacturer's products.
+ */
+public class ListingIndex {
+
+	/** Listings file, its size, a digest of its bytes and the match settings of the run. */
+	private String listingsFilename;
+	private long listingsSize;
+	private String listingsDigest;
+	private String settings;
+
+	/** Fingerprint of each (cleaned) manufacturer's products. */
+	private final Map<String, String> fingerprints = new TreeMap<String, String>();
+
+	/** Listings each manufacturer is a candidate for, by listing ordinal. */
+	private final Map<String, List<Long>> manufacturerListings = new HashMap<String, List<Long>>();
+
+	/** Listings matched to each product, by listing ordinal. */
+	private final Map<String, List<Long>> productListings = new TreeMap<String, List<Long>>();
+
+	/** Manufacturer name lookup used to find the candidates, null for a loaded index. */
+	private final KeywordLookup manufacturerLookup;
+
+	/** Construct an empty index for a run over the listings file with the products. */
+	public ListingIndex(List<Product> products, String listingsFilename, String settings) throws IOException {
+		this.listingsFilename = listingsFilename;
+		this.listingsSize = new File(listingsFilename).length();
+		this.listingsDigest = fileDigest(listingsFilename);
+		this.settings = settings;
+
+		Map<String, List<Product>> manufacturerProducts = new TreeMap<String, List<Product>>();
+		for(Product product : products) {
+			String manufacturer = Challenge.clean(product.manufacturer);
+			List<Product> list = manufacturerProducts.get(manufacturer);
+			if(list == null) {
+				list = new ArrayList<Product>();
+				manufacturerProducts.put(manufacturer, list);
+			}
+			list.add(product);
+		}
+		for(Map.Entry<String, List<Product>> entry : manufacturerProducts.entrySet()) {
+			this.fingerprints.put(entry.getKey(), fingerprint(entry.getValue()));
+			this.manufacturerListings.put(entry.getKey(), new ArrayList<Long>());
+		}
+		this.manufacturerLookup = new KeywordLookup(manufacturerProducts.keySet(), Challenge.MANUFACTURER_MATCH_DELTA);
+	}
+
+	private ListingIndex() {
+		this.manufacturerLookup = null;
+	}
+
+	/** Digest of the products' names, manufacturers, families and models, in product name order. */
+	static String fingerprint(List<Product> products) throws IOException {
+		List<Product> sorted = new ArrayList<Product>(products);
+		Collections.sort(sorted, new Comparator<Product>() {
+			public int compare(Product a, Product b) {
+				return a.product_name.compareTo(b.product_name);
+			}
+		});
+		try {
+			MessageDigest digest = createDigest();
+			for(Product product : sorted) {
+				String line = product.product_name + "\0" + product.manufacturer + "\0" + product.family + "\0" + product.model + "\n";
+				digest.update(line.getBytes("UTF-8"));
+			}
+			return toHex(digest.digest());
+		} catch (UnsupportedEncodingException exception) {
+			throw new IOException("No UTF-8 encoding available", exception);
+		}
+	}
+
+	/** Digest of the file's bytes as stored (compressed files are not decompressed), so an edit that keeps the size is caught too. */
+	private static String fileDigest(String filename) throws IOException {
+		MessageDigest digest = createDigest();
+		InputStream input = new FileInputStream(filename);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			for(int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			input.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	static MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException exception) {
+			throw new IOException("No SHA-1 digest available", exception);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder();
+		for(byte b : bytes) {
+			result.append(String.format("%02x", b & 0xff));
+		}
+		return result.toString();
+	}
+
+	/** Manufacturers that could be the listing's manufacturer. */
+	public Set<String> getCandidates(Listing listing) {
+		return this.manufacturerLookup.getCandidates(Challenge.clean(listing.manufacturer) + " " + Challenge.clean(listing.title));
+	}
+
+	/** Add the listing with its match (null for no match), thread safe. */
+	public void record(Listing listing, String productName) {
+		record(listing, getCandidates(listing), productName);
+	}
+
+	/** Add the listing with its candidate manufacturers and its match (null for no match), thread safe. */
+	public synchronized void record(Listing listing, Set<String> candidates, String productName) {
+		for(String manufacturer : candidates) {
+			this.manufacturerListings.get(manufacturer).add(listing.ordinal);
+		}
+		if(productName != null) {
+			List<Long> ordinals = this.productListings.get(productName);
+			if(ordinals == null) {
+				ordinals = new ArrayList<Long>();
+				this.productListings.put(productName, ordinals);
+			}
+			ordinals.add(listing.ordinal);
+		}
+	}
+
+	/** Throws IOException if the previous index was made for a different listings file (name, size or content) or different match settings. */
+	public void checkCompatible(ListingIndex previous) throws IOException {
+		if(!this.listingsFilename.equals(previous.listingsFilename) || this.listingsSize != previous.listingsSize) {
+			throw new IOException("The index is for a different listings file (" + previous.listingsFilename + ", " + previous.listingsSize + " bytes), run a full match");
+		}
+		if(previous.listingsDigest.isEmpty()) {
+			throw new IOException("The index has no digest of the listings file (saved by an older version), run a full match");
+		}
+		if(!this.listingsDigest.equals(previous.listingsDigest)) {
+			throw new IOException("The listings file " + previous.listingsFilename + " has changed since the index was made, run a full match");
+		}
+		if(!this.settings.equals(previous.settings)) {
+			throw new IOException("The index is for different match settings (" + previous.settings + "), run a full match");
+		}
+	}
+
+	/** Manufacturers that were added, removed or have different products compared to the previous index. */
+	public Set<String> getChangedManufacturers(ListingIndex previous) {
+		Set<String> result = new TreeSet<String>();
+		for(Map.Entry<String, String> entry : this.fingerprints.entrySet()) {
+			if(!entry.getValue().equals(previous.fingerprints.get(entry.getKey()))) {
+				result.add(entry.getKey());
+			}
+		}
+		for(String manufacturer : previous.fingerprints.keySet()) {
+			if(!this.fingerprints.containsKey(manufacturer)) {
+				result.add(manufacturer);
+			}
+		}
+		return result;
+	}
+
+	/** Listings any of the manufacturers is a candidate for. */
+	public Set<Long> getListings(Collection<String> manufacturers) {
+		Set<Long> result = new HashSet<Long>();
+		for(String manufacturer : manufacturers) {
+			List<Long> ordinals = this.manufacturerListings.get(manufacturer);
+			if(ordinals != null) {
+				result.addAll(ordinals);
+			}
+		}
+		return result;
+	}
+
+	/** Matched product name of each matched listing, by ordinal. */
+	public Map<Long, String> getResults() {
+		Map<Long, String> result = new HashMap<Long, String>();
+		for(Map.Entry<String, List<Long>> entry : this.productListings.entrySet()) {
+			for(Long ordinal : entry.getValue()) {
+				result.put(ordinal, entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/** Save as json lines: a header, a line per manufacturer and a line per matched product. */
+	public void save(String filename) throws IOException {
+		System.out.println("Saving listing index file: " + filename);
+
+		BufferedWriter writer = FileStreams.openWriter(filename);
+		try {
+			JSONObject header = new JSONObject();
+			header.put("listings", this.listingsFilename);
+			header.put("size", this.listingsSize);
+			header.put("digest", this.listingsDigest);
+			header.put("settings", this.settings);
+			header.write(writer);
+			writer.write("\n");
+
+			for(Map.Entry<String, String> entry : this.fingerprints.entrySet()) {
+				JSONObject record = new JSONObject();
+				record.put("manufacturer", entry.getKey());
+				record.put("fingerprint", entry.getValue());
+				record.put("listings", sorted(this.manufacturerListings.get(entry.getKey())));
+				record.write(writer);
+				writer.write("\n");
+			}
+
+			for(Map.Entry<String, List<Long>> entry : this.productListings.entrySet()) {
+				JSONObject record = new JSONObject();
+				record.put("product_name", entry.getKey());
+				record.put("listings", sorted(entry.getValue()));
+				record.write(writer);
+				writer.write("\n");
+			}
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static JSONArray sorted(List<Long> ordinals) {
+		List<Long> copy = new ArrayList<Long>(ordinals);
+		Collections.sort(copy);
+		return new JSONArray(copy);
+	}
+
+	/** Load a saved index, throws IOException for file and json format errors. */
+	public static ListingIndex load(String filename) throws IOException {
+		System.out.println("Reading listing index file: " + filename);
+
+		ListingIndex index = new ListingIndex();
+		BufferedReader reader = FileStreams.openReader(filename);
+		try {
+			String line = reader.readLine();
+			if(line == null) {
+				throw new IOException("Empty listing index file: " + filename);
+			}
+			JSONObject header = new JSONObject(line);
+			index.listingsFilename = header.getString("listings");
+			index.listingsSize = header.getLong("size");
+			index.listingsDigest = header.optString("digest", "");
+			index.settings = header.getString("settings");
+
+			for(line = reader.readLine(); line != null; line = reader.readLine()) {
+				JSONObject record = new JSONObject(line);
+				JSONArray array = record.getJSONArray("listings");
+				List<Long> ordinals = new ArrayList<Long>(array.length());
+				for(int i = 0; i < array.length(); ++i) {
+					ordinals.add(array.getLong(i));
+				}
+				if(record.has("manufacturer")) {
+					index.fingerprints.put(record.getString("manufacturer"), record.getString("fingerprint"));
+					index.manufacturerListings.put(record.getString("manufacturer"), ordinals);
+				} else {
+					index.productListings.put(record.getString("product_name"), ordinals);
+				}
+			}
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		} finally {
+			reader.close();
+		}
+		return index;
+	}
+}
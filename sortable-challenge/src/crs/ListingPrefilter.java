@@ -0,0 +1,155 @@
+package crs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap check ahead of the product lookup that rejects listings that can not be, or are very unlikely to be, a product.
+ * A listing is rejected if no title word, or short run of title words joined together, is in the model vocabulary
+ * (the lookup would find nothing anyway), or if an accessory signal word comes before the first manufacturer name word ("LED ring light for Canon/Sony").
+ * Thread safe, counts the rejections and the time spent.
+ */
+public class ListingPrefilter {
+
+	/** Default accessory signal words, in the cleaned (lower case, no punctuation) form. */
+	public static final List<String> DEFAULT_ACCESSORY_WORDS = Arrays.asList(
+			"for", "f\u00fcr", "fur", "pour", "para", "compatible",
+			"case", "bag", "pouch", "tasche", "kameratasche", "fototasche", "etui", "housse", "sacoche",
+			"battery", "batteries", "akku", "batterie", "charger", "ladeger\u00e4t", "chargeur",
+			"adapter", "adaptor", "lens", "objektiv", "objectif", "filter", "hood",
+			"tripod", "stativ", "strap", "screen", "protector", "cable", "kabel", "remote", "memory", "card");
+
+	/** Every word that is an alias in some manufacturer's model lookup, and the model word runs joined without spaces. */
+	private final Set<String> modelVocabulary;
+	
+	/** Longest run of title words to join when checking the vocabulary. */
+	private final int maxRunWords;
+
+	/** Words of the manufacturer names. */
+	private final Set<String> manufacturerWords;
+
+	/** Accessory signal words. */
+	private final Set<String> accessoryWords;
+
+	/** Counters */
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong rejectedNoModelWord = new AtomicLong();
+	private final AtomicLong rejectedAccessory = new AtomicLong();
+	private final AtomicLong filterNanos = new AtomicLong();
+	private final AtomicLong lookupCount = new AtomicLong();
+	private final AtomicLong lookupNanos = new AtomicLong();
+
+	/** Construct the prefilter from the compiled vocabularies. */
+	public ListingPrefilter(Set<String> modelVocabulary, int maxRunWords, Set<String> manufacturerWords, Collection<String> accessoryWords) {
+		this.modelVocabulary = modelVocabulary;
+		this.maxRunWords = maxRunWords;
+		this.manufacturerWords = manufacturerWords;
+		this.accessoryWords = new HashSet<String>(accessoryWords);
+	}
+
+	/** Read an accessory word list, one word per line, blank lines and lines starting with '#' are skipped. */
+	public static List<String> loadAccessoryWords(String filename) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = FileStreams.openReader(filename);
+		try {
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String word = Challenge.clean(line).trim();
+				if(word.length() == 0 || line.trim().startsWith("#")) {
+					continue;
+				}
+				result.add(word);
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/** Returns false if the listing should not be looked up, the title is cleaned. */
+	public boolean accept(String title) {
+		long start = System.nanoTime();
+		try {
+			this.checked.incrementAndGet();
+
+			List<String> words = Challenge.split(title);
+			boolean modelWord = false;
+			boolean manufacturerWord = false;
+			boolean accessoryWord = false;
+			for(String word : words) {
+				
+				// accessory words only count before the manufacturer name
+				if(!manufacturerWord) {
+					if(this.manufacturerWords.contains(word)) {
+						manufacturerWord = true;
+						if(accessoryWord) {
+							this.rejectedAccessory.incrementAndGet();
+							return false;
+						}
+					} else if(this.accessoryWords.contains(word)) {
+						accessoryWord = true;
+					}
+				}
+				
+				if(this.modelVocabulary.contains(word)) {
+					modelWord = true;
+				}
+			}
+			
+			// no alias for the model lookup to find
+			if(!modelWord && !hasModelRun(words)) {
+				this.rejectedNoModelWord.incrementAndGet();
+				return false;
+			}
+			return true;
+		} finally {
+			this.filterNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/** Check the title word runs (model numbers are often split up, "fe 4030") against the vocabulary. */
+	private boolean hasModelRun(List<String> words) {
+		for(int first = 0; first < words.size(); ++first) {
+			StringBuilder run = new StringBuilder(words.get(first));
+			for(int last = first + 1; last < words.size() && last - first < this.maxRunWords; ++last) {
+				run.append(words.get(last));
+				if(this.modelVocabulary.contains(run.toString())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/** Record the time of a full lookup of an accepted listing, used to estimate the time saved. */
+	public void recordLookup(long nanos) {
+		this.lookupCount.incrementAndGet();
+		this.lookupNanos.addAndGet(nanos);
+	}
+
+	/** Reset the counters. */
+	public void resetCounters() {
+		this.checked.set(0);
+		this.rejectedNoModelWord.set(0);
+		this.rejectedAccessory.set(0);
+		this.filterNanos.set(0);
+		this.lookupCount.set(0);
+		this.lookupNanos.set(0);
+	}
+
+	/** Print the counters. */
+	public void report() {
+		long rejected = this.rejectedNoModelWord.get() + this.rejectedAccessory.get();
+		long lookups = this.lookupCount.get();
+		double averageLookup = lookups == 0 ? 0 : this.lookupNanos.get() / (double)lookups;
+		double saved = rejected * averageLookup - this.filterNanos.get();
+		System.out.println(String.format("Prefilter: skipped %d of %d listings (%d without a model word, %d accessories), about %.0fms saved",
+				rejected, this.checked.get(), this.rejectedNoModelWord.get(), this.rejectedAccessory.get(), saved / 1e6));
+	}
+}
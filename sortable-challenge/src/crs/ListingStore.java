@@ -0,0 +1,336 @@
+package crs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Columnar listings, for holding a whole listings file without a Listing (and JSONObject) per row.
+ * All the row data lives in chunks from a ListingArena (heap, direct or memory mapped), so with an off heap arena
+ * the heap does not grow with the number of listings. Each row has a fixed size record in the row table
+ * (ordinal, text page, offset and length of the title, manufacturer and currency ids, price in minor units (cents), price decimals
+ * and the order of the row's json keys) and its title is UTF-8 bytes in a text page. The manufacturer and currency are their ids in the store's own
+ * dictionaries (without a capacity), and the price keeps its number of decimals, so the original price text can be written back.
+ * Rows are read through the row number (flyweight accessors), the text is only decoded while it is used.
+ * Rows that can not be written back from the columns (extra fields, non string values, a price that is not a plain decimal)
+ * also keep their json object, there are normally none.
+ * The store is only used by the engine comparison (--compare), the other runs and the product listings writer still keep
+ * a Listing (and JSONObject) per listing. The store must be closed to release the arena.
+ */
+public class ListingStore implements Closeable {
+
+	/** Price of a row whose price is not a plain decimal. */
+	public static final long NO_PRICE = Long.MIN_VALUE;
+
+	/** Decimals in a minor unit. */
+	private static final int MINOR_DECIMALS = 2;
+
+	/** Plain decimal prices, with at most MINOR_DECIMALS decimals and small enough for a long. */
+	private static final Pattern PLAIN_PRICE = Pattern.compile("-?(0|[1-9][0-9]{0,14})(\\.[0-9]{1," + MINOR_DECIMALS + "})?");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Row record layout. */
+	private static final int ROW_ORDINAL = 0;
+	private static final int ROW_PAGE = 4;
+	private static final int ROW_OFFSET = 8;
+	private static final int ROW_TITLE_LENGTH = 12;
+	private static final int ROW_MANUFACTURER = 16;
+	private static final int ROW_CURRENCY = 20;
+	private static final int ROW_PRICE = 24;
+	private static final int ROW_DECIMALS = 32;
+	private static final int ROW_KEY_ORDER = 33;
+	private static final int ROW_SIZE = 36;
+
+	/** Rows in a row table chunk (a power of 2). */
+	private static final int ROW_CHUNK_BITS = 14;
+	private static final int ROW_CHUNK_ROWS = 1 << ROW_CHUNK_BITS;
+
+	/** Text page sizes, pages start small and double up to the maximum. */
+	private static final int MIN_PAGE_SIZE = 1 << 20;
+	private static final int MAX_PAGE_SHIFT = 4;
+
+	/** Listing fields, a row's key order is the indexes of its keys in here (2 bits each, first key lowest). */
+	private static final String[] FIELDS = { "title", "manufacturer", "currency", "price" };
+
+	/** Key order of a row that can not be written back from the columns. */
+	private static final int NO_KEY_ORDER = -1;
+
+	/** Decoding buffer of each thread. */
+	private static final ThreadLocal<byte[]> DECODE_BUFFER = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[1024];
+		}
+	};
+
+	/** Memory for the row table and text pages. */
+	private final ListingArena arena;
+
+	/** Manufacturer and currency values of the rows. */
+	private final ListingDictionaries dictionaries = new ListingDictionaries(Integer.MAX_VALUE);
+
+	/** Number of rows. */
+	private int size;
+
+	/** Row table chunks and text pages (the page position is its used length). */
+	private final List<ByteBuffer> rowChunks = new ArrayList<ByteBuffer>();
+	private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+
+	/** Original json of the rows that can not be written back from the columns, by row. */
+	private final Map<Integer, JSONObject> irregular = new HashMap<Integer, JSONObject>();
+
+	private volatile boolean closed;
+
+	/** Construct an empty store on the arena, closing the store closes the arena. */
+	public ListingStore(ListingArena arena) {
+		this.arena = arena;
+	}
+
+	/** Read a listings file into a new store on the arena, bad lines go to the quarantine if there is one (see Listing.loadListings). */
+	public static ListingStore load(String filename, ListingArena arena, Quarantine quarantine) throws IOException {
+		System.out.println("Reading listings file: " + filename);
+
+		final ListingStore store = new ListingStore(arena);
+		try {
+			Listing.READER.read(filename, quarantine, new JsonLineReader.BlockHandler<Listing>() {
+				public void handle(List<Listing> listings) throws IOException {
+					for(Listing listing : listings) {
+						store.add(listing);
+					}
+				}
+			});
+		} catch (IOException exception) {
+			store.close();
+			throw exception;
+		}
+		return store;
+	}
+
+	/** Add a row for the listing, rows are added by one thread before any are read. */
+	public void add(Listing listing) throws IOException {
+		checkOpen();
+		if(listing.ordinal > Integer.MAX_VALUE || this.size == Integer.MAX_VALUE) {
+			throw new IOException("Too many listings for the listing store");
+		}
+		byte[] title = listing.title.getBytes(UTF8);
+
+		// title text in the current page
+		int length = title.length;
+		ByteBuffer page = this.pages.isEmpty() ? null : this.pages.get(this.pages.size() - 1);
+		if(page == null || page.remaining() < length) {
+			int pageSize = MIN_PAGE_SIZE << Math.min(this.pages.size(), MAX_PAGE_SHIFT);
+			page = this.arena.allocate(Math.max(pageSize, length));
+			this.pages.add(page);
+		}
+		int offset = page.position();
+		page.put(title);
+
+		int row = this.size;
+		if((row & (ROW_CHUNK_ROWS - 1)) == 0) {
+			this.rowChunks.add(this.arena.allocate(ROW_CHUNK_ROWS * ROW_SIZE));
+		}
+		ByteBuffer rows = this.rowChunks.get(row >>> ROW_CHUNK_BITS);
+		int base = (row & (ROW_CHUNK_ROWS - 1)) * ROW_SIZE;
+		rows.putInt(base + ROW_ORDINAL, (int)listing.ordinal);
+		rows.putInt(base + ROW_PAGE, this.pages.size() - 1);
+		rows.putInt(base + ROW_OFFSET, offset);
+		rows.putInt(base + ROW_TITLE_LENGTH, title.length);
+		rows.putInt(base + ROW_MANUFACTURER, this.dictionaries.manufacturers.intern(listing.manufacturer));
+		rows.putInt(base + ROW_CURRENCY, this.dictionaries.currencies.intern(listing.currency));
+
+		long price = NO_PRICE;
+		if(PLAIN_PRICE.matcher(listing.price).matches()) {
+			int point = listing.price.indexOf('.');
+			int decimals = point < 0 ? 0 : listing.price.length() - point - 1;
+			price = Long.parseLong(point < 0 ? listing.price : listing.price.substring(0, point) + listing.price.substring(point + 1));
+			for(int i = decimals; i < MINOR_DECIMALS; ++i) {
+				price *= 10;
+			}
+			rows.put(base + ROW_DECIMALS, (byte)decimals);
+		}
+		rows.putLong(base + ROW_PRICE, price);
+
+		int keyOrder = getKeyOrder(listing.jsonObject);
+		rows.put(base + ROW_KEY_ORDER, (byte)keyOrder);
+		if(keyOrder == NO_KEY_ORDER || price == NO_PRICE) {
+			this.irregular.put(row, listing.jsonObject);
+		}
+		this.size = row + 1;
+	}
+
+	/** 
+	 * Order the object writes its keys in (its hash map order, which need not be the same for every object), 
+	 * or NO_KEY_ORDER if it does not have just the four string fields.
+	 */
+	private static int getKeyOrder(JSONObject object) {
+		if(object.length() != FIELDS.length) {
+			return NO_KEY_ORDER;
+		}
+		int result = 0;
+		Iterator<?> keys = object.keys();
+		for(int i = 0; i < FIELDS.length; ++i) {
+			Object key = keys.next();
+			int field = Arrays.asList(FIELDS).indexOf(key);
+			if(field < 0 || !(object.opt(FIELDS[field]) instanceof String)) {
+				return NO_KEY_ORDER;
+			}
+			result |= field << (2 * i);
+		}
+		return result;
+	}
+
+	/** Number of rows. */
+	public int size() {
+		return this.size;
+	}
+
+	public long getOrdinal(int row) {
+		return getRows(row).getInt(getBase(row) + ROW_ORDINAL);
+	}
+
+	public String getTitle(int row) {
+		ByteBuffer rows = getRows(row);
+		int base = getBase(row);
+		return decode(rows.getInt(base + ROW_PAGE), rows.getInt(base + ROW_OFFSET), rows.getInt(base + ROW_TITLE_LENGTH));
+	}
+
+	public String getManufacturer(int row) {
+		return this.dictionaries.manufacturers.get(getManufacturerId(row));
+	}
+
+	/** Id of the row's manufacturer in the store's dictionary. */
+	public int getManufacturerId(int row) {
+		return getRows(row).getInt(getBase(row) + ROW_MANUFACTURER);
+	}
+
+	public String getCurrency(int row) {
+		return this.dictionaries.currencies.get(getRows(row).getInt(getBase(row) + ROW_CURRENCY));
+	}
+
+	/** Price in minor units (cents), or NO_PRICE if it is not a plain decimal. */
+	public long getPrice(int row) {
+		return getRows(row).getLong(getBase(row) + ROW_PRICE);
+	}
+
+	/** Price as written in the input. */
+	public String getPriceText(int row) {
+		JSONObject object = this.irregular.get(row);
+		if(object != null) {
+			return object.optString("price");
+		}
+		long value = getPrice(row);
+		int decimals = getRows(row).get(getBase(row) + ROW_DECIMALS);
+		for(int i = decimals; i < MINOR_DECIMALS; ++i) {
+			value /= 10;
+		}
+		if(decimals == 0) {
+			return Long.toString(value);
+		}
+		String digits = Long.toString(Math.abs(value));
+		while(digits.length() <= decimals) {
+			digits = "0" + digits;
+		}
+		return (value < 0 ? "-" : "") + digits.substring(0, digits.length() - decimals) + "." + digits.substring(digits.length() - decimals);
+	}
+
+	/** Row table chunk and record offset of the row. */
+	private ByteBuffer getRows(int row) {
+		checkOpen();
+		if(row < 0 || row >= this.size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + this.size);
+		}
+		return this.rowChunks.get(row >>> ROW_CHUNK_BITS);
+	}
+
+	private static int getBase(int row) {
+		return (row & (ROW_CHUNK_ROWS - 1)) * ROW_SIZE;
+	}
+
+	/** Decode text from a page, through the thread's buffer (the page itself is shared, so it is read from a duplicate). */
+	private String decode(int page, int offset, int length) {
+		byte[] buffer = DECODE_BUFFER.get();
+		if(buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+			DECODE_BUFFER.set(buffer);
+		}
+		ByteBuffer view = this.pages.get(page).duplicate();
+		view.position(offset);
+		view.get(buffer, 0, length);
+		return new String(buffer, 0, length, UTF8);
+	}
+
+	private void checkOpen() {
+		if(this.closed) {
+			throw new IllegalStateException("Listing store is closed");
+		}
+	}
+
+	/** Write the row's listing json, the same text JSONObject would write for the original listing. */
+	public void writeJson(int row, StringBuilder output) {
+		JSONObject object = this.irregular.get(row);
+		if(object != null) {
+			output.append(object.toString());
+			return;
+		}
+		int keyOrder = getRows(row).get(getBase(row) + ROW_KEY_ORDER);
+		output.append('{');
+		for(int i = 0; i < FIELDS.length; ++i) {
+			if(i > 0) {
+				output.append(',');
+			}
+			String field = FIELDS[(keyOrder >>> (2 * i)) & 3];
+			output.append(JSONObject.quote(field)).append(':').append(JSONObject.quote(getField(row, field)));
+		}
+		output.append('}');
+	}
+
+	private String getField(int row, String field) {
+		if(field.equals("title")) {
+			return getTitle(row);
+		} else if(field.equals("manufacturer")) {
+			return getManufacturer(row);
+		} else if(field.equals("currency")) {
+			return getCurrency(row);
+		}
+		return getPriceText(row);
+	}
+
+	/** Make a Listing of the row, for the few rows (matched listings) that are kept as objects. */
+	public Listing getListing(int row) throws IOException {
+		StringBuilder json = new StringBuilder();
+		writeJson(row, json);
+		try {
+			return new Listing(new JSONObject(json.toString()), getOrdinal(row));
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+	}
+
+	/** Arena type and bytes allocated from it. */
+	public ListingArena.Type getArenaType() {
+		return this.arena.getType();
+	}
+
+	public long getMemoryUsage() {
+		return this.arena.getAllocated();
+	}
+
+	/** Release the arena, the rows can not be read afterwards. */
+	public void close() throws IOException {
+		this.closed = true;
+		this.rowChunks.clear();
+		this.pages.clear();
+		this.arena.close();
+	}
+}
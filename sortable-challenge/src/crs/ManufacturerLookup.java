@@ -1,12 +1,15 @@
 package crs;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /** Storage and logic for manufacturer based lookup and identification. */
-public class ManufacturerLookup {
+public class ManufacturerLookup implements ProductMatcher {
 
 	/** list products for each manufacturer. */
 	private final Map<String, List<Product>> manufacturerToProducts = new TreeMap<String, List<Product>>();
@@ -17,8 +20,38 @@ public class ManufacturerLookup {
 	/** manufacturer lookup. */
 	private final KeywordLookup lookup; 
 	
+	/** Corpus derived word weights of the model lookups, null if not used. */
+	private final WordWeights wordWeights;
+	
+	/** Optional check ahead of the lookup, null if not used. */
+	private final ListingPrefilter prefilter;
+	
+	/** 
+	 * Cleaned manufacturer and its manufacturer only lookup, by listing manufacturer id (see ListingDictionaries), filled as listings are seen.
+	 * An entry only counts for the same manufacturer field, ids of another run's dictionaries then just miss.
+	 */
+	private volatile ResolvedManufacturer[] manufacturerCache = new ResolvedManufacturer[64];
+	
+	/** Cached manufacturer field resolution, immutable so it can be read without a lock. */
+	private static class ResolvedManufacturer {
+		final String manufacturer;
+		final String cleaned;
+		final String result;
+		
+		ResolvedManufacturer(String manufacturer, String cleaned, String result) {
+			this.manufacturer = manufacturer;
+			this.cleaned = cleaned;
+			this.result = result;
+		}
+	}
+	
 	/** Construct the lookup and all needed pre-computation. */
 	public ManufacturerLookup(List<Product> products) {
+		this(products, new MatchSettings());
+	}
+	
+	/** Construct the lookup and all needed pre-computation for the settings. */
+	public ManufacturerLookup(List<Product> products, MatchSettings settings) {
 		
 		// get the base map of cleaned manufacturer names to product names
 		for(Product product : products) {
@@ -29,13 +62,31 @@ public class ManufacturerLookup {
 		// initialize the keyword lookup
 		this.lookup = new KeywordLookup(this.manufacturerToProducts.keySet(), Challenge.MANUFACTURER_MATCH_DELTA);
 		
+		// word weights over all the products (a word every product of one manufacturer has is still its family, not noise)
+		this.wordWeights = settings.stopwordShare > 0 && settings.modelEngine == ModelEngine.KEYWORD ? new WordWeights(products, settings.weightSample, settings.stopwordShare) : null;
+		
 		// create the model lookups for each manufacturer
 		for(Map.Entry<String, List<Product>> entry : this.manufacturerToProducts.entrySet()) {
 			String manufacturer = entry.getKey();
 			List<Product> manufacturerProducts = entry.getValue();
-			ModelLookup manufacturerModelLookup = new ModelLookup(manufacturerProducts);
+			ModelLookup manufacturerModelLookup = new ModelLookup(manufacturerProducts, settings, this.wordWeights);
 			this.manufacturerToModelLookup.put(manufacturer, manufacturerModelLookup);
 		}
+		
+		// compile the prefilter vocabularies
+		if(settings.prefilter) {
+			Set<String> modelVocabulary = new HashSet<String>();
+			Set<String> manufacturerWords = new HashSet<String>();
+			int maxModelWords = 1;
+			for(Map.Entry<String, ModelLookup> entry : this.manufacturerToModelLookup.entrySet()) {
+				manufacturerWords.addAll(Challenge.split(entry.getKey()));
+				entry.getValue().addVocabulary(modelVocabulary);
+				maxModelWords = Math.max(maxModelWords, entry.getValue().getMaxModelWords());
+			}
+			this.prefilter = new ListingPrefilter(modelVocabulary, maxModelWords, manufacturerWords, settings.accessoryWords);
+		} else {
+			this.prefilter = null;
+		}
 	}
 	
 	/** refactored map with list putting. */
@@ -63,13 +114,18 @@ public class ManufacturerLookup {
 	 * returns null for no good match. 
 	 */
 	public String lookupManufacturer(String manufacturer, String title) {
+		return lookupManufacturer(manufacturer, null, title);
+	}
+	
+	/** Manufacturer lookup, with the cached manufacturer only lookup if there is one (null if not). */
+	private String lookupManufacturer(String manufacturer, ResolvedManufacturer resolved, String title) {
 		
 		// lookup based on only manufacturer first
-		String result = this.lookup.lookup(manufacturer, null);
+		String result = resolved != null ? resolved.result : this.lookup.lookup(manufacturer);
 		
 		// lookup on manufacturer + title if the first did not return anything
 		if(result == null) {
-			result = this.lookup.lookup(manufacturer + " " + title, null);
+			result = this.lookup.lookup(manufacturer + " " + title);
 		}
 		
 		return result;
@@ -80,9 +136,41 @@ public class ManufacturerLookup {
 	 * returns null for no good match. 
 	 */
 	public String lookupProductName(Listing listing) {
-		String manufacturer = Challenge.clean(listing.manufacturer);
-		String title = Challenge.clean(listing.title);
-		return lookupProductName(manufacturer, title);
+		return match(listing).name;
+	}
+	
+	/** Do the product lookup (as lookupProductName), with the model score of the best product and its margin over the 2nd best. */
+	public MatchResult match(Listing listing) {
+		return matchFields(listing.manufacturerId, listing.manufacturer, listing.title);
+	}
+	
+	/** Do the product lookup (as match) on the listing's manufacturer and title fields, they are cleaned first. */
+	public MatchResult matchFields(int manufacturerId, String manufacturer, String title) {
+		if(manufacturerId < 0) {
+			return match(Challenge.clean(manufacturer), Challenge.clean(title));
+		}
+		ResolvedManufacturer resolved = resolveManufacturer(manufacturerId, manufacturer);
+		return match(resolved.cleaned, resolved, Challenge.clean(title));
+	}
+	
+	/** Cached resolution of the manufacturer field, two threads may both resolve a new one which does no harm. */
+	private ResolvedManufacturer resolveManufacturer(int manufacturerId, String manufacturer) {
+		ResolvedManufacturer[] cache = this.manufacturerCache;
+		ResolvedManufacturer cached = manufacturerId < cache.length ? cache[manufacturerId] : null;
+		if(cached != null && cached.manufacturer.equals(manufacturer)) {
+			return cached;
+		}
+		String cleaned = Challenge.clean(manufacturer);
+		ResolvedManufacturer resolved = new ResolvedManufacturer(manufacturer, cleaned, this.lookup.lookup(cleaned));
+		synchronized (this) {
+			cache = this.manufacturerCache;
+			if(manufacturerId >= cache.length) {
+				cache = Arrays.copyOf(cache, Math.max(cache.length * 2, manufacturerId + 1));
+			}
+			cache[manufacturerId] = resolved;
+			this.manufacturerCache = cache;
+		}
+		return resolved;
 	}
 	
 	/** 
@@ -90,24 +178,224 @@ public class ManufacturerLookup {
 	 * returns null for no good match. 
 	 */
 	public String lookupProductName(String manufacturer, String title) {
+		return match(manufacturer, title).name;
+	}
+	
+	/** Do the product lookup (as lookupProductName), with the model score of the best product and its margin over the 2nd best. */
+	public MatchResult match(String manufacturer, String title) {
+		return match(manufacturer, null, title);
+	}
+	
+	/** Product lookup with the cached manufacturer resolution if there is one (null if not). */
+	private MatchResult match(String manufacturer, ResolvedManufacturer resolved, String title) {
+		if(this.prefilter == null) {
+			return matchUnfiltered(manufacturer, resolved, title);
+		}
+		
+		// cheap rejection of accessories and titles without any model
+		if(!this.prefilter.accept(title)) {
+			return MatchResult.NONE;
+		}
+		
+		long start = System.nanoTime();
+		MatchResult result = matchUnfiltered(manufacturer, resolved, title);
+		this.prefilter.recordLookup(System.nanoTime() - start);
+		return result;
+	}
+	
+	/** Listing after phase one of a grouped match (see GroupedMatcher): its cleaned fields and its manufacturer's model lookup. */
+	public static class ResolvedListing {
+		public final String manufacturer;
+		public final String title;
+		public final ModelLookup modelLookup;
+		
+		ResolvedListing(String manufacturer, String title, ModelLookup modelLookup) {
+			this.manufacturer = manufacturer;
+			this.title = title;
+			this.modelLookup = modelLookup;
+		}
+	}
+	
+	/** 
+	 * Phase one of a grouped match: the manufacturer lookup (and prefilter) only.
+	 * returns null if the listing has no manufacturer (or is rejected), its match is then MatchResult.NONE.
+	 */
+	public ResolvedListing resolve(Listing listing) {
+		String manufacturer;
+		String title = Challenge.clean(listing.title);
+		ResolvedManufacturer resolved = null;
+		if(listing.manufacturerId < 0) {
+			manufacturer = Challenge.clean(listing.manufacturer);
+		} else {
+			resolved = resolveManufacturer(listing.manufacturerId, listing.manufacturer);
+			manufacturer = resolved.cleaned;
+		}
+		if(this.prefilter != null && !this.prefilter.accept(title)) {
+			return null;
+		}
+		
+		String manufacturerResult = lookupManufacturer(manufacturer, resolved, title);
+		ModelLookup modelLookup = manufacturerResult == null ? null : this.manufacturerToModelLookup.get(manufacturerResult);
+		return modelLookup == null ? null : new ResolvedListing(manufacturer, title, modelLookup);
+	}
+	
+	/** Phase two of a grouped match: the model lookup of a resolved listing, the same answer as match. */
+	public MatchResult matchResolved(ResolvedListing listing) {
+		if(this.prefilter == null) {
+			return listing.modelLookup.lookupMatch(listing.manufacturer, listing.title);
+		}
+		long start = System.nanoTime();
+		MatchResult result = listing.modelLookup.lookupMatch(listing.manufacturer, listing.title);
+		this.prefilter.recordLookup(System.nanoTime() - start);
+		return result;
+	}
+	
+	/** Prefilter statistics, null if there is no prefilter. */
+	public ListingPrefilter getPrefilter() {
+		return this.prefilter;
+	}
+	
+	/** Do the product lookup without the prefilter. */
+	private MatchResult matchUnfiltered(String manufacturer, ResolvedManufacturer resolved, String title) {
 		
 		// find the manufacturer first
-		String manufacturerResult = lookupManufacturer(manufacturer, title);
+		String manufacturerResult = lookupManufacturer(manufacturer, resolved, title);
 		
 		// lookup within the manufacturer's products
 		if(manufacturerResult != null) {
 			ModelLookup manufacturerLookup = manufacturerToModelLookup.get(manufacturerResult);
 			if (manufacturerLookup != null) {
-				String result = manufacturerLookup.lookupProductName(manufacturer, title);
-				if(result != null) {
-					// found it
-					return result;
-				}
+				return manufacturerLookup.lookupMatch(manufacturer, title);
 			}			
 		}
 		
 		// not found
-		return null;
+		return MatchResult.NONE;
+	}
+	
+	/** Reset the model lookup and prefilter counters. */
+	public void resetCounters() {
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			modelLookup.resetCounters();
+		}
+		if(this.prefilter != null) {
+			this.prefilter.resetCounters();
+		}
+	}
+	
+	/** Print the fast path, family index, approximate model, trigram index, candidate stage, word weight and prefilter counters. */
+	public void report() {
+		if(getFastPathCount() > 0) {
+			int lookups = getModelLookupCount();
+			int fastPath = getFastPathCount();
+			System.out.println("Exact model fast path: " + fastPath + " of " + lookups + " model lookups (" + fastPath * 100 / lookups + "%)");
+		}
+		
+		// keywords scored per lookup, against what the flat lookups alone would have scored
+		int scored = 0;
+		int family = 0;
+		long keywords = 0;
+		long flatKeywords = 0;
+		boolean familyIndex = false;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			familyIndex |= modelLookup.hasFamilyIndex();
+			scored += modelLookup.getScoredCount();
+			family += modelLookup.getFamilyCount();
+			keywords += modelLookup.getScoredKeywords();
+			flatKeywords += (long)modelLookup.getScoredCount() * modelLookup.getKeywordCount();
+		}
+		if(familyIndex && scored > 0) {
+			System.out.println(String.format("Family index: %d of %d scored model lookups answered within a family, %.1f keywords per lookup (%.1f without the index)",
+					family, scored, keywords / (double)scored, flatKeywords / (double)scored));
+		}
+		
+		// approximate model matches
+		int approximate = 0;
+		int distance = 0;
+		int models = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			approximate += modelLookup.getApproximateCount();
+			distance += modelLookup.getApproximateDistance();
+			models += modelLookup.getApproximateModelCount();
+		}
+		if(models > 0) {
+			System.out.println(String.format("Approximate models: %d of %d model lookups matched within edit distance (%.2f edits on average), %d models",
+					approximate, getModelLookupCount(), approximate > 0 ? distance / (double)approximate : 0.0, models));
+		}
+		
+		// trigram index size and keywords, against the keywords the expanded models take
+		int trigramModels = 0;
+		int trigramPostings = 0;
+		int resplit = 0;
+		int keywordCount = 0;
+		int expandedKeywordCount = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			trigramModels += modelLookup.getTrigramModelCount();
+			trigramPostings += modelLookup.getTrigramPostingCount();
+			resplit += modelLookup.getResplitCount();
+			keywordCount += modelLookup.getKeywordCount();
+			expandedKeywordCount += modelLookup.getExpandedKeywordCount();
+		}
+		if(trigramModels > 0) {
+			System.out.println(String.format("Trigram index: %d models, %d postings, %d of %d scored titles re-split, %d keywords (%d with the bare models' spacing variants too)",
+					trigramModels, trigramPostings, resplit, scored, keywordCount, expandedKeywordCount));
+		}
+		
+		// candidate stage, keywords scored per lookup against the keywords of the lookups
+		int candidateLookups = getCandidateLookups();
+		long candidateKeywords = getCandidateKeywords();
+		if(candidateLookups > 0) {
+			System.out.println(String.format("LSH candidates: %d keyword lookups, %.1f candidate keywords per lookup (%.1f keywords per lookup)",
+					candidateLookups, candidateKeywords / (double)candidateLookups, keywords / (double)Math.max(1, scored)));
+		}
+		
+		// the derived stopwords, and the alias fan out they no longer cost
+		if(this.wordWeights != null) {
+			int entries = 0;
+			for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+				entries += modelLookup.getStopwordEntries();
+			}
+			System.out.println(String.format("Word weights: %d products and %d sample titles, %d words down weighted, %d stopwords (%d alias entries dropped): %s",
+					this.wordWeights.getProductCount(), this.wordWeights.getTitleCount(), this.wordWeights.getDownWeightedCount(),
+					this.wordWeights.getStopwords().size(), entries, this.wordWeights.getStopwords()));
+		}
+		if(this.prefilter != null) {
+			this.prefilter.report();
+		}
 	}
 	
+	/** Number of model lookups done, over all manufacturers (only counted with the fast path or the approximate matcher). */
+	public int getModelLookupCount() {
+		int count = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			count += modelLookup.getLookupCount();
+		}
+		return count;
+	}
+	
+	/** Keyword lookups done through the candidate stage, and the candidate keywords they scored, over all manufacturers. */
+	public int getCandidateLookups() {
+		int count = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			count += modelLookup.getCandidateLookups();
+		}
+		return count;
+	}
+	
+	public long getCandidateKeywords() {
+		long count = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			count += modelLookup.getCandidateKeywords();
+		}
+		return count;
+	}
+	
+	/** Number of model lookups resolved by the exact model fast path, over all manufacturers. */
+	public int getFastPathCount() {
+		int count = 0;
+		for(ModelLookup modelLookup : this.manufacturerToModelLookup.values()) {
+			count += modelLookup.getFastPathCount();
+		}
+		return count;
+	}
 }
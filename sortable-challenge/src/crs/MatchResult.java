@@ -0,0 +1,23 @@
+package crs;
+
+/** Answer of a lookup: the best result (null for no good match), its score and how far it is ahead of the runner up. */
+public class MatchResult {
+
+	/** No candidates at all. */
+	public static final MatchResult NONE = new MatchResult(null, 0, 0);
+
+	/** Best result, null if it is not significantly better than the runner up. */
+	public final String name;
+
+	/** Score of the best candidate (even when it was not good enough to be the result). */
+	public final float score;
+
+	/** Best candidate's score minus the runner up's score. */
+	public final float margin;
+
+	public MatchResult(String name, float score, float margin) {
+		this.name = name;
+		this.score = score;
+		this.margin = margin;
+	}
+}
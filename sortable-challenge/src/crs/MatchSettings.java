@@ -0,0 +1,100 @@
+package crs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/** 
+ * Settings used to build the matching lookups. The defaults are the reference algorithm, 
+ * each option is opt-in (the exact model fast path still changes some answers, 54 of the 20196 sample listings).
+ */
+public class MatchSettings {
+
+	/** Model detection engine, set by the MatcherEngine. */
+	public ModelEngine modelEngine = ModelEngine.KEYWORD;
+
+	/** Resolve a listing straight away when its title has exactly one product's model verbatim (and nothing else like a model or an accessory), before any scoring. */
+	public boolean exactModelFastPath = false;
+
+	/** Reject accessories and listings without any model word before looking them up. */
+	public boolean prefilter = false;
+	
+	/** Score only the models of the family named in the title when it names exactly one, the flat model lookup is the fall back. */
+	public boolean familyIndex = false;
+	
+	/** Match a model decorated or split in the title (a few extra characters, Myers' bit-parallel edit distance) before scoring. */
+	public boolean approximateModels = false;
+	
+	/** 
+	 * Keep only the bare models as they are in the keyword lookups, re-splitting the titles through a trigram index instead of expanding their spacing 
+	 * variants. The model and family keywords keep theirs, so the lookups are only a little smaller (1279 keywords against 1366 for the sample products).
+	 */
+	public boolean trigramIndex = false;
+	
+	/** Recall target of the keyword lookups' MinHash (LSH) candidate stage, 0 to score every keyword the title words reach. */
+	public float candidateRecall = 0;
+
+	/** Share of the documents (products, and the title sample) above which a model word is a stopword, 0 to not derive word weights. */
+	public float stopwordShare = 0;
+	
+	/** Cleaned listing titles counted along with the products for the word weights, may be empty. */
+	public List<String> weightSample = Collections.emptyList();
+	
+	/** Accessory signal words for the prefilter. */
+	public List<String> accessoryWords = ListingPrefilter.DEFAULT_ACCESSORY_WORDS;
+
+	/** Copy of the settings. */
+	public MatchSettings copy() {
+		MatchSettings copy = new MatchSettings();
+		copy.modelEngine = this.modelEngine;
+		copy.exactModelFastPath = this.exactModelFastPath;
+		copy.prefilter = this.prefilter;
+		copy.familyIndex = this.familyIndex;
+		copy.approximateModels = this.approximateModels;
+		copy.trigramIndex = this.trigramIndex;
+		copy.candidateRecall = this.candidateRecall;
+		copy.stopwordShare = this.stopwordShare;
+		copy.weightSample = this.weightSample;
+		copy.accessoryWords = this.accessoryWords;
+		return copy;
+	}
+
+	/** 
+	 * Short names of the options on top of the engine ("+fast+family"), for the engine name to be followed by.
+	 * A weight sample is named by its size and a hash of its titles, so a different sample file or size gives a different name.
+	 */
+	public String getOptionNames() {
+		return (this.exactModelFastPath ? "+fast" : "") + (this.prefilter ? "+prefilter" : "")
+				+ (this.familyIndex ? "+family" : "") + (this.approximateModels ? "+approximate" : "") + (this.trigramIndex ? "+trigram" : "")
+				+ (this.candidateRecall > 0 ? "+lsh" + this.candidateRecall : "")
+				+ (this.stopwordShare > 0 ? "+weights" + this.stopwordShare : "")
+				+ (this.stopwordShare > 0 && !this.weightSample.isEmpty() ? "+sample" + this.weightSample.size() + ":" + Integer.toHexString(this.weightSample.hashCode()) : "");
+	}
+
+	/** Settings from the command line options, throws IOException if the accessory word file or the weight sample can not be read. */
+	public static MatchSettings fromOptions(Options options) throws IOException {
+		MatchSettings settings = new MatchSettings();
+		settings.exactModelFastPath = options.has("fast-path");
+		settings.prefilter = options.has("prefilter") || options.has("accessory-words");
+		settings.familyIndex = options.has("family-index");
+		settings.approximateModels = options.has("approximate-models");
+		settings.trigramIndex = options.has("trigram-index");
+		settings.candidateRecall = (float)options.getDouble("lsh-recall", 0);
+		if(settings.candidateRecall < 0 || settings.candidateRecall >= 1) {
+			throw new IllegalArgumentException("Option --lsh-recall expects a fraction of at least 0 and below 1, got: " + settings.candidateRecall);
+		}
+		if(options.has("word-weights") || options.has("weight-sample")) {
+			settings.stopwordShare = (float)options.getDouble("word-weights", WordWeights.DEFAULT_STOPWORD_SHARE);
+			if(settings.stopwordShare <= 0 || settings.stopwordShare >= 1) {
+				throw new IllegalArgumentException("Option --word-weights expects a fraction above 0 and below 1, got: " + settings.stopwordShare);
+			}
+		}
+		if(options.has("weight-sample")) {
+			settings.weightSample = WordWeights.loadTitleSample(options.get("weight-sample", null), options.getInt("weight-sample-size", WordWeights.DEFAULT_SAMPLE_SIZE));
+		}
+		if(options.has("accessory-words")) {
+			settings.accessoryWords = ListingPrefilter.loadAccessoryWords(options.get("accessory-words", null));
+		}
+		return settings;
+	}
+}
@@ -0,0 +1,59 @@
+package crs;
+
+import java.util.List;
+
+/** Product matching engines selectable from the command line. */
+public enum MatcherEngine {
+
+	/** The original algorithm: keyword model lookup, every model scored, no prefilter. Takes no settings. */
+	REFERENCE {
+		public ProductMatcher create(List<Product> products, MatchSettings settings) {
+			return new ManufacturerLookup(products, new MatchSettings());
+		}
+		
+		public boolean takesSettings() {
+			return false;
+		}
+	},
+
+	/** Manufacturer lookup with the keyword model engine. */
+	KEYWORD {
+		public ProductMatcher create(List<Product> products, MatchSettings settings) {
+			MatchSettings keyword = settings.copy();
+			keyword.modelEngine = ModelEngine.KEYWORD;
+			return new ManufacturerLookup(products, keyword);
+		}
+	},
+
+	/** Manufacturer lookup with the automaton model engine. */
+	AUTOMATON {
+		public ProductMatcher create(List<Product> products, MatchSettings settings) {
+			MatchSettings automaton = settings.copy();
+			automaton.modelEngine = ModelEngine.AUTOMATON;
+			return new ManufacturerLookup(products, automaton);
+		}
+	};
+
+	/** Build the engine's matcher for the products, the settings are ignored by an engine that takes none. */
+	public abstract ProductMatcher create(List<Product> products, MatchSettings settings);
+
+	/** False if the engine ignores the match settings (the reference), the command line then refuses them. */
+	public boolean takesSettings() {
+		return true;
+	}
+
+	/** Command line name. */
+	public String getName() {
+		return name().toLowerCase();
+	}
+
+	/** Parse a command line name, throws IllegalArgumentException for unknown names. */
+	public static MatcherEngine parse(String name) {
+		for(MatcherEngine engine : values()) {
+			if(engine.getName().equalsIgnoreCase(name)) {
+				return engine;
+			}
+		}
+		throw new IllegalArgumentException("Unknown engine: " + name);
+	}
+}
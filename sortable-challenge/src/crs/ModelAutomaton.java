@@ -0,0 +1,337 @@
+package crs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Aho-Corasick automaton over the space-insensitive model (and family) strings of one manufacturer's products.
+ * The title is scanned once, ignoring spaces, and every occurrence that starts and ends on a word boundary is reported,
+ * so "sx130 is", "sx130is" and "sx 130is" all find model "SX130 IS" without pre-expanding the spacing variants.
+ * Runs of model words with a digit ("z1485" of "Z1485 IS") are patterns too, worth their share of the model's length.
+ * Products are picked with the same delta rule as the keyword lookup, but the scoring is the automaton's own
+ * (model runs worth their share of the model, a family bonus, longer occurrences containing shorter ones win), so this is a
+ * different engine with different answers, not a faster keyword lookup: it agrees with the reference on about 97% of the sample listings.
+ */
+public class ModelAutomaton {
+
+	/** Extra score, as a fraction of the model's share, for a product whose family also occurs in the title. */
+	private static final float FAMILY_BONUS = 1f;
+
+	/** Node numbers. */
+	private static final int ROOT = 0;
+	private static final int NONE = -1;
+
+	/** This is the amount better of a match before it is a match. */
+	private final float delta;
+
+	/** Pattern strings (spaces removed), by pattern id. */
+	private final String[] patterns;
+
+	/** Product names whose model is or contains the pattern (empty for family only patterns), by pattern id. */
+	private final List<List<String>> patternProducts = new ArrayList<List<String>>();
+	
+	/** Fraction of the product's model covered by the pattern, same order as patternProducts. */
+	private final List<List<Float>> patternWeights = new ArrayList<List<Float>>();
+
+	/** True if the pattern is also a family name, by pattern id. */
+	private final boolean[] patternIsFamily;
+
+	/** Family (spaces removed) of each product name. */
+	private final Map<String, String> productFamilies = new HashMap<String, String>();
+
+	/** Characters used by the patterns, anything else sends the automaton back to the root. */
+	private final char[] alphabet;
+	private final int[] asciiSymbols = new int[128];
+
+	/** Transition table, node * alphabet size + symbol gives the next node (goto and failure links folded together). */
+	private final int[] transitions;
+
+	/** Pattern ending at each node, or NONE. */
+	private final int[] nodePatterns;
+
+	/** Next node with a pattern on each node's failure chain, or NONE. */
+	private final int[] outputLinks;
+
+	/** Construct the automaton for the products (all from the same manufacturer). */
+	public ModelAutomaton(List<Product> products, float delta) {
+		this.delta = delta;
+
+		// collect the model and family patterns
+		Map<String, Integer> patternIds = new LinkedHashMap<String, Integer>();
+		List<Boolean> families = new ArrayList<Boolean>();
+		for(Product product : products) {
+			String model = compact(Challenge.clean(product.model));
+			String family = compact(Challenge.clean(product.family));
+			this.productFamilies.put(product.product_name, family);
+
+			if(model.length() > 0) {
+				for(Map.Entry<String, Float> run : modelRuns(Challenge.clean(product.model)).entrySet()) {
+					int id = patternId(patternIds, families, run.getKey());
+					this.patternProducts.get(id).add(product.product_name);
+					this.patternWeights.get(id).add(run.getValue());
+				}
+			}
+			if(family.length() > 0) {
+				int id = patternId(patternIds, families, family);
+				families.set(id, true);
+			}
+		}
+		this.patterns = patternIds.keySet().toArray(new String[patternIds.size()]);
+		this.patternIsFamily = new boolean[this.patterns.length];
+		for(int i = 0; i < this.patterns.length; ++i) {
+			this.patternIsFamily[i] = families.get(i);
+		}
+
+		// alphabet of the pattern characters
+		TreeSet<Character> characters = new TreeSet<Character>();
+		int totalLength = 0;
+		for(String pattern : this.patterns) {
+			for(int i = 0; i < pattern.length(); ++i) {
+				characters.add(pattern.charAt(i));
+			}
+			totalLength += pattern.length();
+		}
+		this.alphabet = new char[characters.size()];
+		int symbol = 0;
+		for(char c : characters) {
+			this.alphabet[symbol++] = c;
+		}
+		Arrays.fill(this.asciiSymbols, NONE);
+		for(int i = 0; i < this.alphabet.length; ++i) {
+			if(this.alphabet[i] < 128) {
+				this.asciiSymbols[this.alphabet[i]] = i;
+			}
+		}
+
+		// trie of the patterns
+		int size = this.alphabet.length;
+		int[] trie = new int[(totalLength + 1) * Math.max(size, 1)];
+		Arrays.fill(trie, NONE);
+		int[] nodePatterns = new int[totalLength + 1];
+		Arrays.fill(nodePatterns, NONE);
+		int nodes = 1;
+		for(int id = 0; id < this.patterns.length; ++id) {
+			String pattern = this.patterns[id];
+			int node = ROOT;
+			for(int i = 0; i < pattern.length(); ++i) {
+				int index = node * size + symbol(pattern.charAt(i));
+				if(trie[index] == NONE) {
+					trie[index] = nodes++;
+				}
+				node = trie[index];
+			}
+			nodePatterns[node] = id;
+		}
+
+		// breadth first failure links, filling in the missing transitions to make a full automaton
+		int[] failures = new int[nodes];
+		int[] outputLinks = new int[nodes];
+		outputLinks[ROOT] = NONE;
+		int[] queue = new int[nodes];
+		int head = 0;
+		int tail = 0;
+		for(int s = 0; s < size; ++s) {
+			int child = trie[ROOT * size + s];
+			if(child == NONE) {
+				trie[ROOT * size + s] = ROOT;
+			} else {
+				failures[child] = ROOT;
+				outputLinks[child] = NONE;
+				queue[tail++] = child;
+			}
+		}
+		while(head < tail) {
+			int node = queue[head++];
+			for(int s = 0; s < size; ++s) {
+				int child = trie[node * size + s];
+				int fallback = trie[failures[node] * size + s];
+				if(child == NONE) {
+					trie[node * size + s] = fallback;
+				} else {
+					failures[child] = fallback;
+					outputLinks[child] = nodePatterns[fallback] != NONE ? fallback : outputLinks[fallback];
+					queue[tail++] = child;
+				}
+			}
+		}
+
+		this.transitions = Arrays.copyOf(trie, nodes * size);
+		this.nodePatterns = Arrays.copyOf(nodePatterns, nodes);
+		this.outputLinks = outputLinks;
+	}
+
+	private int patternId(Map<String, Integer> patternIds, List<Boolean> families, String pattern) {
+		Integer id = patternIds.get(pattern);
+		if(id == null) {
+			id = patternIds.size();
+			patternIds.put(pattern, id);
+			families.add(false);
+			this.patternProducts.add(new ArrayList<String>());
+			this.patternWeights.add(new ArrayList<Float>());
+		}
+		return id;
+	}
+	
+	/** The whole model (weight 1) and each run of its words that has a digit, weighted by the fraction of the model length. */
+	private static Map<String, Float> modelRuns(String model) {
+		Map<String, Float> result = new LinkedHashMap<String, Float>();
+		String whole = compact(model);
+		result.put(whole, 1f);
+		
+		List<String> words = Challenge.split(model);
+		for(int first = 0; first < words.size(); ++first) {
+			StringBuilder run = new StringBuilder();
+			boolean digit = false;
+			for(int last = first; last < words.size(); ++last) {
+				String word = words.get(last);
+				run.append(word);
+				for(int i = 0; i < word.length() && !digit; ++i) {
+					digit = Character.isDigit(word.charAt(i));
+				}
+				if(digit && !result.containsKey(run.toString())) {
+					result.put(run.toString(), run.length() * 1f / whole.length());
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Remove the spaces. */
+	private static String compact(String string) {
+		return string.replace(" ", "");
+	}
+
+	/** Alphabet symbol of the character, or NONE. */
+	private int symbol(char c) {
+		if(c < 128) {
+			return this.asciiSymbols[c];
+		}
+		int index = Arrays.binarySearch(this.alphabet, c);
+		return index < 0 ? NONE : index;
+	}
+
+	/**
+	 * Scan the (cleaned) title and return the best matching product name, with its score and margin.
+	 * The name is null for no good match.
+	 */
+	public MatchResult lookupProductName(String title) {
+		if(this.alphabet.length == 0) {
+			return MatchResult.NONE;
+		}
+
+		// title without spaces, remembering where the words start and end
+		int length = title.length();
+		char[] chars = new char[length];
+		boolean[] wordStarts = new boolean[length];
+		boolean[] wordEnds = new boolean[length];
+		int count = 0;
+		for(int i = 0; i < length; ++i) {
+			char c = title.charAt(i);
+			if(c == ' ') {
+				continue;
+			}
+			chars[count] = c;
+			wordStarts[count] = i == 0 || title.charAt(i - 1) == ' ';
+			wordEnds[count] = i == length - 1 || title.charAt(i + 1) == ' ';
+			count += 1;
+		}
+
+		// single pass, collect the word aligned occurrences
+		List<int[]> modelMatches = new ArrayList<int[]>();
+		boolean[] familyFound = new boolean[this.patterns.length];
+		int size = this.alphabet.length;
+		int node = ROOT;
+		for(int i = 0; i < count; ++i) {
+			int s = symbol(chars[i]);
+			node = s == NONE ? ROOT : this.transitions[node * size + s];
+			if(!wordEnds[i]) {
+				continue;
+			}
+
+			for(int output = this.nodePatterns[node] != NONE ? node : this.outputLinks[node]; output != NONE; output = this.outputLinks[output]) {
+				int id = this.nodePatterns[output];
+				int start = i - this.patterns[id].length() + 1;
+				if(!wordStarts[start]) {
+					continue;
+				}
+				if(this.patternIsFamily[id]) {
+					familyFound[id] = true;
+				}
+				if(!this.patternProducts.get(id).isEmpty()) {
+					modelMatches.add(new int[] { id, start, i });
+				}
+			}
+		}
+
+		// families found, by family string
+		Map<String, Boolean> families = new HashMap<String, Boolean>();
+		for(int id = 0; id < familyFound.length; ++id) {
+			if(familyFound[id]) {
+				families.put(this.patterns[id], true);
+			}
+		}
+
+		// score the products of the longest occurrences, a model inside a longer model (5d in 5d mark ii) does not count
+		Map<String, Float> resultMap = new HashMap<String, Float>();
+		boolean[] scored = new boolean[this.patterns.length];
+		for(int[] match : modelMatches) {
+			if(scored[match[0]] || isContained(match, modelMatches)) {
+				continue;
+			}
+			scored[match[0]] = true;
+
+			List<String> productNames = this.patternProducts.get(match[0]);
+			List<Float> weights = this.patternWeights.get(match[0]);
+			for(int i = 0; i < productNames.size(); ++i) {
+				String productName = productNames.get(i);
+				float share = weights.get(i) / productNames.size();
+				float amount = share;
+				if(families.containsKey(this.productFamilies.get(productName))) {
+					amount += share * FAMILY_BONUS;
+				}
+				Float value = resultMap.get(productName);
+				resultMap.put(productName, value == null ? amount : value + amount);
+			}
+		}
+
+		return selectBestResult(resultMap);
+	}
+
+	/** Returns true if the match is inside a longer match. */
+	private static boolean isContained(int[] match, List<int[]> matches) {
+		for(int[] other : matches) {
+			if(other[1] <= match[1] && other[2] >= match[2] && other[2] - other[1] > match[2] - match[1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Return the best result only if it is significantly better then the 2nd best result. */
+	private MatchResult selectBestResult(Map<String, Float> resultMap) {
+		float bestValue1 = 0;
+		float bestValue2 = 0;
+		String bestResult1 = null;
+
+		for(Map.Entry<String, Float> entry : resultMap.entrySet()) {
+			float value = entry.getValue();
+			if(value > bestValue1) {
+				bestValue2 = bestValue1;
+				bestValue1 = value;
+				bestResult1 = entry.getKey();
+			} else if(value > bestValue2) {
+				bestValue2 = value;
+			}
+		}
+
+		if(bestValue1 > bestValue2 + this.delta) {
+			return new MatchResult(bestResult1, bestValue1, bestValue1 - bestValue2);
+		}
+		return new MatchResult(null, bestValue1, bestValue1 - bestValue2);
+	}
+}
@@ -0,0 +1,11 @@
+package crs;
+
+/** Model detection engines available to ModelLookup. */
+public enum ModelEngine {
+
+	/** Word by word alias lookup over the model (and family) keywords, the reference engine. */
+	KEYWORD,
+
+	/** Single pass Aho-Corasick scan of the title for the space-insensitive model strings, with its own scoring (different answers). */
+	AUTOMATON
+}
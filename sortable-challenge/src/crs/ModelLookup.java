@@ -1,40 +1,213 @@
 package crs;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Storage and logic for model (and family) based lookup and identification. */
 public class ModelLookup {
 
+	/** Score (and margin) reported for a fast path answer, an exact model hit counts as a full match with nothing close to it. */
+	private static final float EXACT_MODEL_SCORE = 1f;
+	
+	/** Shortest canonical model used by the fast path. */
+	private static final int MIN_CANONICAL_LENGTH = 3;
+	
 	/** list product names for each model (and family). */
 	private final Map<String, List<String>> modelToProductNames = new TreeMap<String, List<String>>();
 	
-	/** model lookup. */
+	/** model lookup, null for the automaton engine (which does its own scoring). */
 	private final KeywordLookup lookup;
 	
+	/** Model detection engine used by lookupProductName. */
+	private final ModelEngine engine;
+	
+	/** Single pass model scanner, only built for the automaton engine. */
+	private final ModelAutomaton automaton;
+	
+	/** Canonical model (cleaned, spaces removed) to product names, for the exact match fast path. null if not used. */
+	private final Map<String, List<String>> canonicalModelToProductNames;
+	
+	/** Accessory signal words, a title with one of them is left to the scoring by the fast path. null if the fast path is not used. */
+	private final Set<String> accessoryWords;
+	
+	/** Most words in a model, title word runs longer than this can not be a canonical model. */
+	private int maxModelWords;
+	
+	/** Family index: canonical family (cleaned, spaces removed) to a lookup over just that family's models. null if not used. */
+	private final Map<String, KeywordLookup> familyLookups;
+	
+	/** Most words in a family. */
+	private int maxFamilyWords;
+	
+	/** Approximate (edit distance) model matching, tried after the fast path. null if not used. */
+	private final ApproximateModelMatcher approximate;
+	
+	/** Trigram index re-splitting the titles for the keyword lookups, whose bare models then hold no spacing variants. null if not used. */
+	private final TrigramIndex trigramIndex;
+	
+	/** Keywords the flat lookup would hold with every spacing variant, for the trigram index report. */
+	private final int expandedKeywordCount;
+	
+	/** Count the scored lookups and their keywords, only for the family index, trigram index and candidate stage reports (a shared counter costs on every lookup). */
+	private final boolean countScored;
+	
+	/** Counters */
+	private final AtomicInteger lookupCount = new AtomicInteger();
+	private final AtomicInteger fastPathCount = new AtomicInteger();
+	private final AtomicInteger scoredCount = new AtomicInteger();
+	private final AtomicInteger familyCount = new AtomicInteger();
+	private final AtomicInteger approximateCount = new AtomicInteger();
+	private final AtomicInteger approximateDistance = new AtomicInteger();
+	private final AtomicLong scoredKeywords = new AtomicLong();
+	
 	/** Construct the lookup and all needed pre-computation. */
 	public ModelLookup(List<Product> products) {
+		this(products, new MatchSettings());
+	}
+	
+	/** Construct the lookup and all needed pre-computation for the settings. */
+	public ModelLookup(List<Product> products, MatchSettings settings) {
+		this(products, settings, null);
+	}
+	
+	/** Construct the lookup for the settings, with the word weights compiled into the keyword lookups (null for none). */
+	public ModelLookup(List<Product> products, MatchSettings settings, WordWeights wordWeights) {
+		this.engine = settings.modelEngine;
+		this.canonicalModelToProductNames = settings.exactModelFastPath ? new HashMap<String, List<String>>() : null;
+		this.accessoryWords = settings.exactModelFastPath ? new HashSet<String>(settings.accessoryWords) : null;
+		Map<String, List<String>> approximateModels = settings.approximateModels ? new HashMap<String, List<String>>() : null;
+		List<String> models = new ArrayList<String>();
+		Set<String> expandedKeywords = settings.trigramIndex ? new HashSet<String>() : null;
+		
+		// the same model keywords split up by family, for the family index
+		boolean keywordEngine = this.engine == ModelEngine.KEYWORD;
+		Map<String, Map<String, List<String>>> familyKeywords = settings.familyIndex && keywordEngine ? new TreeMap<String, Map<String, List<String>>>() : null;
+		this.countScored = keywordEngine && (settings.familyIndex || settings.trigramIndex || settings.candidateRecall > 0);
 		
 		// get the base map of cleaned model (and family) names to product names
 		for(Product product : products) {
 			String model = Challenge.clean(product.model);
 			String family = Challenge.clean(product.family);
 			
-			for(String modelCombination : combinations(model)) {
+			this.maxModelWords = Math.max(this.maxModelWords, Challenge.split(model).size());
+			if(this.canonicalModelToProductNames != null) {
+				putCanonicalModel(this.canonicalModelToProductNames, model, product.product_name);
+			}
+			if(approximateModels != null) {
+				putCanonicalModel(approximateModels, model, product.product_name);
+			}
+			
+			models.add(model);
+			
+			// the trigram index re-splits the titles instead, the model and family keywords keep their spacing variants though:
+			// the family word is shared by all of them, without the variants the family's other models are too weak a runner up
+			// to stop a lone generic model word winning ("eos 5d mark ii" going to the eos 1d mark iv)
+			Set<String> modelCombinations = combinations(model);
+			Set<String> modelKeywords = settings.trigramIndex ? Collections.singleton(model) : modelCombinations;
+			if(expandedKeywords != null) {
+				expandedKeywords.addAll(modelCombinations);
+			}
+			for(String modelCombination : modelKeywords) {
 				put(this.modelToProductNames, modelCombination, product.product_name);
-				
-				if(family.length() > 0) {
+			}
+			if(family.length() > 0) {
+				for(String modelCombination : modelCombinations) {
 					put(this.modelToProductNames, modelCombination + " " + family, product.product_name);
-				}	
-			}	
+				}
+			}
+			
+			if(familyKeywords != null && family.length() > 0) {
+				String canonicalFamily = family.replace(" ", "");
+				Map<String, List<String>> keywords = familyKeywords.get(canonicalFamily);
+				if(keywords == null) {
+					keywords = new TreeMap<String, List<String>>();
+					familyKeywords.put(canonicalFamily, keywords);
+				}
+				this.maxFamilyWords = Math.max(this.maxFamilyWords, Challenge.split(family).size());
+				for(String modelCombination : modelKeywords) {
+					put(keywords, modelCombination, product.product_name);
+				}
+				for(String modelCombination : modelCombinations) {
+					put(keywords, modelCombination + " " + family, product.product_name);
+				}
+			}
+		}
+		
+		if(expandedKeywords != null) {
+			expandedKeywords.addAll(this.modelToProductNames.keySet());
+		}
+		this.expandedKeywordCount = expandedKeywords != null ? expandedKeywords.size() : this.modelToProductNames.size();
+		
+		// initialize the keyword lookup (the model map is still kept for the prefilter vocabulary)
+		this.lookup = keywordEngine ? new KeywordLookup(this.modelToProductNames, Challenge.MODEL_MATCH_DELTA) : null;
+		if(this.lookup != null && settings.candidateRecall > 0) {
+			this.lookup.setCandidateRecall(settings.candidateRecall);
+		}
+		if(this.lookup != null && wordWeights != null) {
+			this.lookup.setWordWeights(wordWeights);
+		}
+		
+		// family lookups, only where a family is a real narrowing of the manufacturer's models
+		Map<String, KeywordLookup> familyLookups = null;
+		if(familyKeywords != null) {
+			familyLookups = new HashMap<String, KeywordLookup>();
+			for(Map.Entry<String, Map<String, List<String>>> entry : familyKeywords.entrySet()) {
+				if(entry.getValue().size() < this.modelToProductNames.size()) {
+					KeywordLookup familyLookup = new KeywordLookup(entry.getValue(), Challenge.MODEL_MATCH_DELTA);
+					if(settings.candidateRecall > 0) {
+						familyLookup.setCandidateRecall(settings.candidateRecall);
+					}
+					if(wordWeights != null) {
+						familyLookup.setWordWeights(wordWeights);
+					}
+					familyLookups.put(entry.getKey(), familyLookup);
+				}
+			}
+		}
+		this.familyLookups = familyLookups == null || familyLookups.isEmpty() ? null : familyLookups;
+		
+		this.trigramIndex = settings.trigramIndex && keywordEngine ? new TrigramIndex(models) : null;
+		
+		// title word runs one word longer than a model, for a model split by a stray space
+		this.approximate = approximateModels != null ? new ApproximateModelMatcher(approximateModels, this.maxModelWords + 1) : null;
+		
+		// initialize the automaton
+		this.automaton = this.engine == ModelEngine.AUTOMATON ? new ModelAutomaton(products, Challenge.MODEL_MATCH_DELTA) : null;
+	}
+	
+	/** 
+	 * Add the model to a canonical model map (fast path or approximate). Only models with letters and digits are used, 
+	 * plain numbers ("600", "105") turn up in titles for other reasons too often to trust without scoring.
+	 */
+	private static void putCanonicalModel(Map<String, List<String>> canonicalModels, String model, String productName) {
+		String canonical = model.replace(" ", "");
+		boolean letter = false;
+		boolean digit = false;
+		for(int i = 0; i < canonical.length(); ++i) {
+			letter |= Character.isLetter(canonical.charAt(i));
+			digit |= Character.isDigit(canonical.charAt(i));
+		}
+		if(!letter || !digit || canonical.length() < MIN_CANONICAL_LENGTH) {
+			return;
 		}
 		
-		// initialize the keyword lookup
-		this.lookup = new KeywordLookup(this.modelToProductNames.keySet(), Challenge.MODEL_MATCH_DELTA);
+		List<String> productNames = canonicalModels.get(canonical);
+		if(productNames == null) {
+			productNames = new ArrayList<String>();
+			canonicalModels.put(canonical, productNames);
+		}
+		if(!productNames.contains(productName)) {
+			productNames.add(productName);
+		}
 	}
 	
 	/** refactored map with list putting. */
@@ -113,9 +286,292 @@ public class ModelLookup {
 	 * returns null for no good match. 
 	 */
 	public String lookupProductName(String manufacturer, String title) {
+		return lookupMatch(manufacturer, title).name;
+	}
+	
+	/** Do the model lookup (as lookupProductName), also returning the score of the best product and its margin over the 2nd best. */
+	public MatchResult lookupMatch(String manufacturer, String title) {
+		// only counted for the fast path and approximate reports, a shared counter costs on every lookup
+		if(this.canonicalModelToProductNames != null || this.approximate != null) {
+			this.lookupCount.incrementAndGet();
+		}
+		
+		// exact model in the title, no need to score
+		if(this.canonicalModelToProductNames != null) {
+			String result = lookupCanonicalModel(title);
+			if(result != null) {
+				this.fastPathCount.incrementAndGet();
+				return new MatchResult(result, EXACT_MODEL_SCORE, EXACT_MODEL_SCORE);
+			}
+		}
+		
+		// model within a few edits of a title word run (typo, partial or decorated model)
+		if(this.approximate != null) {
+			ApproximateModelMatcher.Match match = this.approximate.lookup(title);
+			if(match != null) {
+				this.approximateCount.incrementAndGet();
+				this.approximateDistance.addAndGet(match.distance);
+				float score = 1f - match.distance / (float)match.length;
+				return new MatchResult(match.productName, score, score);
+			}
+		}
+		
+		// scan the title in one pass
+		if(this.engine == ModelEngine.AUTOMATON) {
+			return this.automaton.lookupProductName(title);
+		}
+		
+		// lookup within the family named in the title, the whole manufacturer if it names none or the family gives no answer
+		if(this.countScored) {
+			this.scoredCount.incrementAndGet();
+		}
+		if(this.trigramIndex != null) {
+			title = this.trigramIndex.resplit(title);
+		}
+		if(this.familyLookups != null) {
+			KeywordLookup familyLookup = lookupFamily(title);
+			if(familyLookup != null) {
+				this.scoredKeywords.addAndGet(familyLookup.getKeywordCount());
+				MatchResult result = familyLookup.lookupMatch(title);
+				if(result.name != null) {
+					this.familyCount.incrementAndGet();
+					return result;
+				}
+			}
+		}
 		
 		// lookup based on title
-		String result = this.lookup.lookup(title, this.modelToProductNames);
+		if(this.countScored) {
+			this.scoredKeywords.addAndGet(this.lookup.getKeywordCount());
+		}
+		return this.lookup.lookupMatch(title);
+	}
+	
+	/** Lookup of the one family named in the title (a run of title words, spaces removed), null if it names none or more than one. */
+	private KeywordLookup lookupFamily(String title) {
+		List<String> words = Challenge.split(title);
+		KeywordLookup result = null;
+		
+		for(int first = 0; first < words.size(); ++first) {
+			StringBuilder run = new StringBuilder();
+			for(int last = first; last < words.size() && last - first < this.maxFamilyWords; ++last) {
+				run.append(words.get(last));
+				KeywordLookup familyLookup = this.familyLookups.get(run.toString());
+				if(familyLookup == null) {
+					continue;
+				}
+				if(result != null && result != familyLookup) {
+					// more than one family
+					return null;
+				}
+				result = familyLookup;
+			}
+		}
 		return result;
 	}
+	
+	/** 
+	 * Fast path, look up every run of title words (spaces removed) in the canonical model map.
+	 * Returns the product name if exactly one product was hit, null if none or more than one (ambiguous, needs scoring).
+	 * A title with an accessory word ("case for ...") or another model-like word (letters and digits, "vg110 vg130") outside the hit 
+	 * is ambiguous too: the scoring may well reject it or pick another product.
+	 */
+	private String lookupCanonicalModel(String title) {
+		List<String> words = Challenge.split(title);
+		String result = null;
+		boolean[] hit = new boolean[words.size()];
+		
+		for(int first = 0; first < words.size(); ++first) {
+			if(this.accessoryWords.contains(words.get(first))) {
+				return null;
+			}
+			StringBuilder run = new StringBuilder();
+			for(int last = first; last < words.size() && last - first < this.maxModelWords; ++last) {
+				run.append(words.get(last));
+				List<String> productNames = this.canonicalModelToProductNames.get(run.toString());
+				if(productNames == null) {
+					continue;
+				}
+				
+				for(String productName : productNames) {
+					if(result == null) {
+						result = productName;
+					} else if(!result.equals(productName)) {
+						// more than one product
+						return null;
+					}
+				}
+				for(int i = first; i <= last; ++i) {
+					hit[i] = true;
+				}
+			}
+		}
+		if(result == null) {
+			return null;
+		}
+		
+		// any other model-like word
+		for(int i = 0; i < words.size(); ++i) {
+			if(!hit[i] && isModelLike(words.get(i))) {
+				return null;
+			}
+		}
+		return result;
+	}
+	
+	/** True if the word has both letters and digits. */
+	private static boolean isModelLike(String word) {
+		boolean letter = false;
+		boolean digit = false;
+		for(int i = 0; i < word.length(); ++i) {
+			letter |= Character.isLetter(word.charAt(i));
+			digit |= Character.isDigit(word.charAt(i));
+		}
+		return letter && digit;
+	}
+	
+	/** 
+	 * Add the words the lookup can find to the vocabulary: the keyword aliases, 
+	 * and every run of model words joined without spaces (found by the fast path and the automaton).
+	 */
+	public void addVocabulary(Set<String> vocabulary) {
+		for(String keyword : this.modelToProductNames.keySet()) {
+			List<String> words = Challenge.split(keyword);
+			for(int first = 0; first < words.size(); ++first) {
+				if(!Challenge.IGNORABLE_WORDS.contains(words.get(first))) {
+					vocabulary.add(words.get(first));
+				}
+				StringBuilder run = new StringBuilder(words.get(first));
+				for(int last = first + 1; last < words.size(); ++last) {
+					run.append(words.get(last));
+					vocabulary.add(run.toString());
+				}
+			}
+		}
+	}
+	
+	/** Most words in a model. */
+	public int getMaxModelWords() {
+		return this.maxModelWords;
+	}
+	
+	/** Reset the counters, also those of the keyword lookups and the trigram index. */
+	public void resetCounters() {
+		this.lookupCount.set(0);
+		this.fastPathCount.set(0);
+		this.scoredCount.set(0);
+		this.familyCount.set(0);
+		this.approximateCount.set(0);
+		this.approximateDistance.set(0);
+		this.scoredKeywords.set(0);
+		if(this.lookup != null) {
+			this.lookup.resetCounters();
+		}
+		if(this.familyLookups != null) {
+			for(KeywordLookup familyLookup : this.familyLookups.values()) {
+				familyLookup.resetCounters();
+			}
+		}
+		if(this.trigramIndex != null) {
+			this.trigramIndex.resetCounters();
+		}
+	}
+	
+	/** Number of lookups done, only counted with the fast path or the approximate matcher (0 otherwise). */
+	public int getLookupCount() {
+		return this.lookupCount.get();
+	}
+	
+	/** Number of lookups resolved by the exact model fast path. */
+	public int getFastPathCount() {
+		return this.fastPathCount.get();
+	}
+	
+	/** Number of lookups resolved by the approximate matcher, and the edit distances summed over them. */
+	public int getApproximateCount() {
+		return this.approximateCount.get();
+	}
+	
+	public int getApproximateDistance() {
+		return this.approximateDistance.get();
+	}
+	
+	/** Number of canonical models of the approximate matcher, 0 if it is not used. */
+	public int getApproximateModelCount() {
+		return this.approximate == null ? 0 : this.approximate.getModelCount();
+	}
+	
+	/** Number of models and postings in the trigram index, and of titles it re-split, 0 if it is not used. */
+	public int getTrigramModelCount() {
+		return this.trigramIndex == null ? 0 : this.trigramIndex.getModelCount();
+	}
+	
+	public int getTrigramPostingCount() {
+		return this.trigramIndex == null ? 0 : this.trigramIndex.getPostingCount();
+	}
+	
+	public int getResplitCount() {
+		return this.trigramIndex == null ? 0 : this.trigramIndex.getResplitCount();
+	}
+	
+	/** Number of keywords the flat lookup would hold with the spacing variants of the bare models too. */
+	public int getExpandedKeywordCount() {
+		return this.expandedKeywordCount;
+	}
+	
+	/** Keyword lookups done through the candidate stage (flat and family), and the candidate keywords they scored. */
+	public int getCandidateLookups() {
+		int count = this.lookup == null ? 0 : this.lookup.getCandidateLookups();
+		if(this.familyLookups != null) {
+			for(KeywordLookup familyLookup : this.familyLookups.values()) {
+				count += familyLookup.getCandidateLookups();
+			}
+		}
+		return count;
+	}
+	
+	public long getCandidateKeywords() {
+		long count = this.lookup == null ? 0 : this.lookup.getCandidateKeywords();
+		if(this.familyLookups != null) {
+			for(KeywordLookup familyLookup : this.familyLookups.values()) {
+				count += familyLookup.getCandidateKeywords();
+			}
+		}
+		return count;
+	}
+	
+	/** Alias to keyword entries the word weights dropped as stopwords (flat and family lookups). */
+	public int getStopwordEntries() {
+		int count = this.lookup == null ? 0 : this.lookup.getStopwordEntries();
+		if(this.familyLookups != null) {
+			for(KeywordLookup familyLookup : this.familyLookups.values()) {
+				count += familyLookup.getStopwordEntries();
+			}
+		}
+		return count;
+	}
+	
+	/** Number of keyword engine lookups that were scored, and of those answered by a family lookup (only counted for the reports that use them). */
+	public int getScoredCount() {
+		return this.scoredCount.get();
+	}
+	
+	public int getFamilyCount() {
+		return this.familyCount.get();
+	}
+	
+	/** Keywords of the lookups scored (family and flat), summed over the scored lookups (only counted for the reports that use them). */
+	public long getScoredKeywords() {
+		return this.scoredKeywords.get();
+	}
+	
+	/** Number of keywords in the flat (whole manufacturer) lookup. */
+	public int getKeywordCount() {
+		return this.lookup == null ? 0 : this.lookup.getKeywordCount();
+	}
+	
+	/** Returns true if the family index is built (some family narrows the models). */
+	public boolean hasFamilyIndex() {
+		return this.familyLookups != null;
+	}
 }
@@ -0,0 +1,79 @@
+package crs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Simple command line parser, separates '--name' and '--name=value' options from the positional arguments. */
+public class Options {
+
+	/** Positional arguments in the order given. */
+	private final List<String> arguments = new ArrayList<String>();
+
+	/** Named options, flags without a value map to an empty string. */
+	private final Map<String, String> options = new TreeMap<String, String>();
+
+	/** Parse the command line arguments. */
+	public Options(String[] args) {
+		for(String arg : args) {
+			if(!arg.startsWith("--")) {
+				this.arguments.add(arg);
+				continue;
+			}
+
+			// split '--name=value' into name and value
+			int equals = arg.indexOf('=');
+			if(equals < 0) {
+				this.options.put(arg.substring(2), "");
+			} else {
+				this.options.put(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+		}
+	}
+
+	/** Returns the positional arguments. */
+	public List<String> getArguments() {
+		return this.arguments;
+	}
+
+	/** Returns true if the option was given. */
+	public boolean has(String name) {
+		return this.options.containsKey(name);
+	}
+
+	/** Returns the option value, or the default value if the option was not given. */
+	public String get(String name, String defaultValue) {
+		String value = this.options.get(name);
+		if(value == null || value.length() == 0) {
+			return defaultValue;
+		}
+		return value;
+	}
+
+	/** Returns the option as an integer, throws IllegalArgumentException for a bad number. */
+	public int getInt(String name, int defaultValue) {
+		String value = get(name, null);
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException exception) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number, got: " + value);
+		}
+	}
+
+	/** Returns the option as a decimal number, throws IllegalArgumentException for a bad number. */
+	public double getDouble(String name, double defaultValue) {
+		String value = get(name, null);
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException exception) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number, got: " + value);
+		}
+	}
+}
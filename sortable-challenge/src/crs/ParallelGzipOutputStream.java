@@ -0,0 +1,145 @@
+package crs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output compressed on multiple threads (pigz style).
+ * The data is cut into fixed size blocks, each block is compressed independently into a complete gzip member
+ * and the members are written in order, giving a valid multi-member gzip stream that any gunzip can read.
+ * The compression threads are daemon threads, so a stream left unclosed does not keep the JVM running.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	/** Uncompressed size of each block, big enough that the per member overhead and lost history do not matter. */
+	public static final int BLOCK_SIZE = 1 << 20;
+
+	/** Underlying output. */
+	private final OutputStream out;
+
+	/** Compression threads. */
+	private final ExecutorService executor;
+
+	/** Blocks being compressed, in output order. */
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	/** Maximum number of blocks in flight, bounds the memory used. */
+	private final int maxPending;
+
+	/** Current block being filled. */
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int count;
+
+	private boolean closed;
+
+	/** Construct the stream compressing on the given number of threads. */
+	public ParallelGzipOutputStream(OutputStream out, int threads) {
+		this.out = out;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "gzip-compressor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.maxPending = threads * 2;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(this.count == this.buffer.length) {
+			submitBlock();
+		}
+		this.buffer[this.count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(this.count == this.buffer.length) {
+				submitBlock();
+			}
+			int size = Math.min(length, this.buffer.length - this.count);
+			System.arraycopy(bytes, offset, this.buffer, this.count, size);
+			this.count += size;
+			offset += size;
+			length -= size;
+		}
+	}
+
+	/**
+	 * Compresses the partly filled block and writes out every block, so the output so far can be read (as complete gzip members).
+	 * Each flush ends a member, flushing often makes many small members.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(this.count > 0) {
+			submitBlock();
+		}
+		while(!this.pending.isEmpty()) {
+			writeBlock(this.pending.removeFirst());
+		}
+		this.out.flush();
+	}
+
+	/** Compresses the last block, waits for all blocks and closes the underlying output. */
+	@Override
+	public void close() throws IOException {
+		if(this.closed) {
+			return;
+		}
+		this.closed = true;
+
+		try {
+			if(this.count > 0) {
+				submitBlock();
+			}
+			while(!this.pending.isEmpty()) {
+				writeBlock(this.pending.removeFirst());
+			}
+		} finally {
+			this.executor.shutdownNow();
+			this.out.close();
+		}
+	}
+
+	/** Hand the current block to a compression thread and start a new one. */
+	private void submitBlock() throws IOException {
+		final byte[] block = this.buffer;
+		final int length = this.count;
+		this.pending.add(this.executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+				gzip.write(block, 0, length);
+				gzip.close();
+				return compressed.toByteArray();
+			}
+		}));
+
+		this.buffer = new byte[BLOCK_SIZE];
+		this.count = 0;
+
+		// do not let the compression get too far behind
+		while(this.pending.size() > this.maxPending) {
+			writeBlock(this.pending.removeFirst());
+		}
+	}
+
+	/** Wait for a block and write it. */
+	private void writeBlock(Future<byte[]> future) throws IOException {
+		try {
+			this.out.write(BlockPipeline.getResult(future, "compress"));
+		} catch (InterruptedException exception) {
+			throw new IOException("Interrupted while compressing", exception);
+		}
+	}
+}
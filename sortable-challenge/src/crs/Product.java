@@ -1,9 +1,6 @@
 package crs;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -40,23 +37,23 @@ public class Product {
 	
 	/** Simple products file reader, throws IOException for all file and json format errors. No error recovery. */
 	public static List<Product> loadProducts(String filename) throws IOException {
-		List<Product> result = new ArrayList<Product>();
+		return loadProducts(filename, null);
+	}
+	
+	/** 
+	 * Parallel products file reader, throws IOException for all file errors. 
+	 * Bad lines go to the quarantine if there is one, otherwise the first bad line throws IOException.
+	 */
+	public static List<Product> loadProducts(String filename, Quarantine quarantine) throws IOException {
 		
 		System.out.println("Reading products file: " + filename);
 		
-		// simple line by line file read
-		BufferedReader reader = new BufferedReader(new FileReader(filename));
-		for(String line = reader.readLine(); line != null; line = reader.readLine()) {
-			try {
-				result.add(new Product(new JSONObject(line)));
-			} catch (JSONException exception) {
-				reader.close();
-				throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		JsonLineReader<Product> reader = new JsonLineReader<Product>() {
+			protected Product parse(JSONObject object, long lineNumber) throws JSONException {
+				return new Product(object);
 			}
-		}
-		reader.close();
-		
-		return result;
+		};
+		return reader.read(filename, quarantine);
 	}
 	
 	/** Save the product listings, throws IOException for all file and json format errors. No error recovery. */
@@ -64,26 +61,27 @@ public class Product {
 		
 		System.out.println("Saving product listings file: " + filename);
 		
-		// simple line by line file writer
-		BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
-		for(Map.Entry<String, Product> entry : productMap.entrySet()) {
-			
-			Product product = entry.getValue();
-			JSONObject result = new JSONObject();
-			try {
-				result.put("product_name", product.product_name);
-				result.put("listings", product.getListings());
-				result.write(writer);
-			} catch (JSONException exception) {
-				writer.close();
-				throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		// simple line by line file writer (compressed if the name ends in .gz)
+		// (not flushed per product, a compressed output would get a gzip member for each)
+		BufferedWriter writer = FileStreams.openWriter(filename);
+		try {
+			for(Map.Entry<String, Product> entry : productMap.entrySet()) {
+				
+				Product product = entry.getValue();
+				JSONObject result = new JSONObject();
+				try {
+					result.put("product_name", product.product_name);
+					result.put("listings", product.getListings());
+					result.write(writer);
+				} catch (JSONException exception) {
+					throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+				}
+				writer.write("\n");
 			}
-			writer.write("\n");
-			writer.flush();
+		} finally {
+			// done
+			writer.close();
 		}
-		
-		// done
-		writer.close();
 	}
 	
 	/** Returns the listings as json objects. */
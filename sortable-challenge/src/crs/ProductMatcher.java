@@ -0,0 +1,29 @@
+package crs;
+
+/** 
+ * Listing to product matching engine, implementations must be thread safe (listings are matched on multiple threads).
+ * ManufacturerLookup is the reference implementation.
+ */
+public interface ProductMatcher {
+
+	/** 
+	 * Find the product the listing is for, returning the product name.
+	 * returns null for no good match. 
+	 */
+	String lookupProductName(Listing listing);
+
+	/** Find the product (as lookupProductName), also returning the engine's score for it and its margin over the runner up. */
+	MatchResult match(Listing listing);
+
+	/** 
+	 * Match (as match) on the listing's manufacturer and title fields, for listings that are not held as Listing objects.
+	 * The manufacturer id is its id in the listing dictionaries of the run (see ListingDictionaries), -1 if it has none.
+	 */
+	MatchResult matchFields(int manufacturerId, String manufacturer, String title);
+
+	/** Print the engine's counters, if it has any. */
+	void report();
+
+	/** Reset the engine's counters, after a pass that should not be reported (a warm up). */
+	void resetCounters();
+}
@@ -0,0 +1,136 @@
+package crs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lenient loading support, malformed lines are written to a quarantine file instead of failing the whole load.
+ * Loading is only aborted once more lines have failed than the error budget allows.
+ * Thread safe, the loaders report from multiple threads.
+ */
+public class Quarantine {
+
+	/** Error budget value for no limit. */
+	public static final int UNLIMITED = -1;
+
+	/** Quarantine file name. */
+	private final String filename;
+
+	/** Maximum number of rejected lines before giving up, or UNLIMITED. */
+	private final int maxErrors;
+
+	/** Keep the lines already in the quarantine file (resumed run), instead of starting a new file. */
+	private final boolean append;
+
+	/** Quarantine file, opened on the first rejected line. */
+	private BufferedWriter writer;
+
+	/** File and line of the records already in the file when appending, so lines read again (the products) are not written twice. */
+	private Set<String> written;
+
+	/** Counters */
+	private int accepted;
+	private int rejected;
+
+	/** Construct the quarantine, the file is only created if something is rejected. */
+	public Quarantine(String filename, int maxErrors) {
+		this(filename, maxErrors, false);
+	}
+
+	/** Construct the quarantine, appending to the file (a resumed run keeps the lines rejected before the checkpoint) or replacing it. */
+	public Quarantine(String filename, int maxErrors, boolean append) {
+		this.filename = filename;
+		this.maxErrors = maxErrors;
+		this.append = append;
+	}
+
+	/** Count good lines, called once per block to keep the lock cheap. */
+	public synchronized void accept(int count) {
+		this.accepted += count;
+	}
+
+	/** Write the bad line to the quarantine file, throws IOException once the error budget is used up. */
+	public synchronized void reject(String source, long lineNumber, String line, String error) throws IOException {
+		this.rejected += 1;
+
+		if(this.writer == null) {
+			this.written = this.append ? readWritten() : new HashSet<String>();
+			this.writer = new BufferedWriter(new FileWriter(this.filename, this.append));
+		}
+
+		// one json object per bad line, keeps the raw line so it can be fixed and re-fed
+		if(this.written.add(source + ":" + lineNumber)) {
+			JSONObject record = new JSONObject();
+			try {
+				record.put("file", source);
+				record.put("line", lineNumber);
+				record.put("error", error);
+				record.put("record", line);
+				record.write(this.writer);
+			} catch (JSONException exception) {
+				throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+			}
+			this.writer.write("\n");
+		}
+
+		if(this.maxErrors != UNLIMITED && this.rejected > this.maxErrors) {
+			this.writer.flush();
+			throw new IOException("Too many malformed lines in " + source + ", error budget of " + this.maxErrors + " exceeded (last on line " + lineNumber + ")");
+		}
+	}
+
+	/** File and line of each record in the quarantine file, none if there is no file yet. */
+	private Set<String> readWritten() throws IOException {
+		Set<String> result = new HashSet<String>();
+		if(!new File(this.filename).exists()) {
+			return result;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(this.filename));
+		try {
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if(line.trim().length() == 0) {
+					continue;
+				}
+				JSONObject record = new JSONObject(line);
+				result.add(record.getString("file") + ":" + record.getLong("line"));
+			}
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + this.filename + ", " + exception.getMessage(), exception);
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/** Number of good lines seen. */
+	public synchronized int getAccepted() {
+		return this.accepted;
+	}
+
+	/** Number of bad lines seen. */
+	public synchronized int getRejected() {
+		return this.rejected;
+	}
+
+	/** Print the counters. */
+	public synchronized void report() {
+		System.out.println("Quarantine: " + this.accepted + " lines accepted, " + this.rejected + " lines rejected" + (this.rejected > 0 ? " (see " + this.filename + ")" : ""));
+	}
+
+	/** Close the quarantine file. */
+	public synchronized void close() throws IOException {
+		if(this.writer != null) {
+			this.writer.close();
+			this.writer = null;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package crs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Memory budgeted collector for the matched listings, used instead of the products' listing lists.
+ * Matches are kept as (product id, listing ordinal, listing json bytes) records, and once they take more than the budget
+ * they are sorted and spilled to a run file. Saving k-way merges the runs and the records still in memory,
+ * writing the same product listings file as Product.saveProductListings (listings in ordinal order within each product).
+ */
+public class ResultCollector {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Most run files merged at once. */
+	private static final int MAX_MERGE_RUNS = 64;
+
+	/** Approximate memory used by a record on top of its json bytes. */
+	private static final int RECORD_OVERHEAD = 64;
+
+	/** Product line keys, in the order JSONObject writes them (the order of its hash map). */
+	private static final boolean PRODUCT_NAME_FIRST = productNameFirst();
+
+	private static boolean productNameFirst() {
+		JSONObject object = new JSONObject();
+		try {
+			object.put("product_name", "");
+			object.put("listings", "");
+		} catch (JSONException exception) {
+			throw new IllegalStateException(exception);
+		}
+		return object.keys().next().equals("product_name");
+	}
+
+	/** One matched listing. */
+	private static class Record {
+		final int productId;
+		final long ordinal;
+		final byte[] json;
+
+		Record(int productId, long ordinal, byte[] json) {
+			this.productId = productId;
+			this.ordinal = ordinal;
+			this.json = json;
+		}
+	}
+
+	/** Output order: product (file order), then listing ordinal. */
+	private static final Comparator<Record> ORDER = new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+			if(a.productId != b.productId) {
+				return a.productId < b.productId ? -1 : 1;
+			}
+			return a.ordinal < b.ordinal ? -1 : (a.ordinal == b.ordinal ? 0 : 1);
+		}
+	};
+
+	/** Products in output order, and their ids (index in that order). */
+	private final List<Product> products;
+	private final Map<String, Integer> productIds = new HashMap<String, Integer>();
+
+	/** Memory budget for the records in memory, in bytes. */
+	private final long budget;
+
+	/** Directory for the run files, null for the default temporary directory. */
+	private final File directory;
+
+	/** Records not spilled yet, and their approximate size. */
+	private List<Record> records = new ArrayList<Record>();
+	private long recordsSize;
+
+	/** Spilled run files, each sorted in output order. */
+	private final List<File> runs = new ArrayList<File>();
+
+	/** Counters */
+	private long count;
+	private int spilledRuns;
+	private long spilledBytes;
+
+	/** Construct an empty collector for the products (in output order) with the memory budget in bytes. */
+	public ResultCollector(Map<String, Product> productMap, long budget, File directory) {
+		this.products = new ArrayList<Product>(productMap.values());
+		for(int i = 0; i < this.products.size(); ++i) {
+			this.productIds.put(this.products.get(i).product_name, i);
+		}
+		this.budget = budget;
+		this.directory = directory;
+	}
+
+	/** Add a match, spilling the records in memory to a run file if they go over the budget. */
+	public synchronized void add(Product product, Listing listing) throws IOException {
+		Integer productId = this.productIds.get(product.product_name);
+		if(productId == null) {
+			throw new IllegalArgumentException("Unknown product: " + product.product_name);
+		}
+		byte[] json = listing.jsonObject.toString().getBytes(UTF8);
+		this.records.add(new Record(productId, listing.ordinal, json));
+		this.recordsSize += json.length + RECORD_OVERHEAD;
+		this.count += 1;
+
+		if(this.recordsSize > this.budget) {
+			spill();
+		}
+	}
+
+	/** Sort the records in memory and write them to a new run file. */
+	private void spill() throws IOException {
+		Collections.sort(this.records, ORDER);
+		File file = createRun();
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for(Record record : this.records) {
+				write(output, record);
+			}
+		} finally {
+			output.close();
+		}
+		this.spilledRuns += 1;
+		this.spilledBytes += file.length();
+		this.records = new ArrayList<Record>();
+		this.recordsSize = 0;
+	}
+
+	/** New empty run file, in the run list so it is deleted with the others (by save, or deleteRuns if the run is abandoned). */
+	private File createRun() throws IOException {
+		File file = File.createTempFile("results", ".run", this.directory);
+		this.runs.add(file);
+		return file;
+	}
+
+	private static void write(DataOutputStream output, Record record) throws IOException {
+		output.writeInt(record.productId);
+		output.writeLong(record.ordinal);
+		output.writeInt(record.json.length);
+		output.write(record.json);
+	}
+
+	/** Write the product listings file by merging the runs and the records in memory, the run files are deleted after. */
+	public synchronized void save(String filename) throws IOException {
+		System.out.println("Saving product listings file: " + filename + " (merging " + this.runs.size() + " spilled runs)");
+
+		Writer writer = null;
+		Merge merge = null;
+		try {
+			// too many runs to open at once, merge them in groups into longer runs first
+			while(this.runs.size() > MAX_MERGE_RUNS) {
+				List<File> group = new ArrayList<File>(this.runs.subList(0, MAX_MERGE_RUNS));
+				File merged = createRun();
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged)));
+				merge = new Merge(group, null);
+				try {
+					for(Record record = merge.next(); record != null; record = merge.next()) {
+						write(output, record);
+					}
+				} finally {
+					merge.close();
+					merge = null;
+					output.close();
+				}
+				for(File run : group) {
+					run.delete();
+				}
+				this.runs.removeAll(group);
+			}
+
+			Collections.sort(this.records, ORDER);
+			merge = new Merge(this.runs, this.records);
+			writer = FileStreams.openWriter(filename);
+			int open = -1;
+			boolean first = true;
+			for(Record record = merge.next(); record != null; record = merge.next()) {
+				if(record.productId != open) {
+					// finish the open product and write the products without matches in between
+					if(open >= 0) {
+						endProduct(writer, open);
+					}
+					for(int id = open + 1; id < record.productId; ++id) {
+						startProduct(writer, id);
+						endProduct(writer, id);
+					}
+					startProduct(writer, record.productId);
+					open = record.productId;
+					first = true;
+				}
+				if(!first) {
+					writer.write(',');
+				}
+				writer.write(new String(record.json, UTF8));
+				first = false;
+			}
+			if(open >= 0) {
+				endProduct(writer, open);
+			}
+			for(int id = open + 1; id < this.products.size(); ++id) {
+				startProduct(writer, id);
+				endProduct(writer, id);
+			}
+		} finally {
+			if(merge != null) {
+				merge.close();
+			}
+			if(writer != null) {
+				writer.close();
+			}
+			deleteRuns();
+		}
+	}
+
+	/** Product line up to its first listing. */
+	private void startProduct(Writer writer, int productId) throws IOException {
+		if(PRODUCT_NAME_FIRST) {
+			writer.write("{\"product_name\":" + JSONObject.quote(this.products.get(productId).product_name) + ",\"listings\":[");
+		} else {
+			writer.write("{\"listings\":[");
+		}
+	}
+
+	/** Product line after its last listing. */
+	private void endProduct(Writer writer, int productId) throws IOException {
+		if(PRODUCT_NAME_FIRST) {
+			writer.write("]}\n");
+		} else {
+			writer.write("],\"product_name\":" + JSONObject.quote(this.products.get(productId).product_name) + "}\n");
+		}
+	}
+
+	/** Delete the run files, also for a run that is abandoned. */
+	public synchronized void deleteRuns() {
+		for(File run : this.runs) {
+			run.delete();
+		}
+		this.runs.clear();
+	}
+
+	/** Print the counters. */
+	public synchronized void report() {
+		System.out.println(String.format("Result collector: %d matches, spilled %d runs (%.1fMB) over the %.1fMB budget",
+				this.count, this.spilledRuns, this.spilledBytes / 1e6, this.budget / 1e6));
+	}
+
+	/** K-way merge of run files and (optionally) the sorted records in memory, in output order. */
+	private static class Merge {
+		private final List<RunReader> readers = new ArrayList<RunReader>();
+		private final PriorityQueue<RunReader> queue;
+
+		Merge(List<File> runs, List<Record> records) throws IOException {
+			this.queue = new PriorityQueue<RunReader>(runs.size() + 1, new Comparator<RunReader>() {
+				public int compare(RunReader a, RunReader b) {
+					return ORDER.compare(a.current, b.current);
+				}
+			});
+			try {
+				if(records != null) {
+					this.readers.add(new MemoryRunReader(records.iterator()));
+				}
+				for(File run : runs) {
+					this.readers.add(new FileRunReader(run));
+				}
+				for(RunReader reader : this.readers) {
+					if(reader.next()) {
+						this.queue.add(reader);
+					}
+				}
+			} catch (IOException exception) {
+				close();
+				throw exception;
+			}
+		}
+
+		/** Next record, null when all the runs are done. */
+		Record next() throws IOException {
+			RunReader reader = this.queue.poll();
+			if(reader == null) {
+				return null;
+			}
+			Record record = reader.current;
+			if(reader.next()) {
+				this.queue.add(reader);
+			}
+			return record;
+		}
+
+		void close() throws IOException {
+			for(RunReader reader : this.readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/** Sorted records of one run, current is the record at the front. */
+	private static abstract class RunReader {
+		Record current;
+
+		/** Move to the next record, returns false at the end of the run. */
+		abstract boolean next() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	/** Run of the records still in memory. */
+	private static class MemoryRunReader extends RunReader {
+		private final Iterator<Record> records;
+
+		MemoryRunReader(Iterator<Record> records) {
+			this.records = records;
+		}
+
+		boolean next() {
+			this.current = this.records.hasNext() ? this.records.next() : null;
+			return this.current != null;
+		}
+	}
+
+	/** Run spilled to a file. */
+	private static class FileRunReader extends RunReader {
+		private final DataInputStream input;
+
+		FileRunReader(File file) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		boolean next() throws IOException {
+			int productId;
+			try {
+				productId = this.input.readInt();
+			} catch (EOFException exception) {
+				this.current = null;
+				return false;
+			}
+			long ordinal = this.input.readLong();
+			byte[] json = new byte[this.input.readInt()];
+			this.input.readFully(json);
+			this.current = new Record(productId, ordinal, json);
+			return true;
+		}
+
+		void close() throws IOException {
+			this.input.close();
+		}
+	}
+}
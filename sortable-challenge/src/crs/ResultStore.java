@@ -0,0 +1,221 @@
+package crs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary result store, for looking up one product's listings without reading the whole output.
+ * The segment file ([base].seg) holds the listing records, each product's records next to each other
+ * (record: long ordinal, int length, length bytes of UTF-8 listing json). The index file ([base].idx) holds, for each product,
+ * the offset and size of its records in the segment, so a query is one index lookup and one memory mapped read.
+ * Both files are written once: the old index is deleted before the segment is rewritten, and the new index is written last
+ * (synced through a temporary file) after the segment is synced, so a store without an index is incomplete.
+ * Usage is: java -cp sortable-challenge.jar crs.ResultStore [store base] [product name ...]
+ */
+public class ResultStore {
+
+	/** File format markers. */
+	private static final int SEGMENT_MAGIC = 0x43525353;	// "CRSS"
+	private static final int INDEX_MAGIC = 0x43525349;		// "CRSI"
+	private static final int VERSION = 1;
+
+	/** Size of the segment header (magic and version). */
+	private static final int SEGMENT_HEADER_SIZE = 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Product's records in the segment. */
+	private static class Entry {
+		final long offset;
+		final long size;
+		final int count;
+
+		Entry(long offset, long size, int count) {
+			this.offset = offset;
+			this.size = size;
+			this.count = count;
+		}
+	}
+
+	/** Segment file, open for queries. */
+	private final RandomAccessFile segment;
+
+	/** Index entries by product name, in output order. */
+	private final Map<String, Entry> entries;
+
+	private ResultStore(RandomAccessFile segment, Map<String, Entry> entries) {
+		this.segment = segment;
+		this.entries = entries;
+	}
+
+	/** Segment and index file names of the store. */
+	public static String getSegmentFilename(String base) {
+		return base + ".seg";
+	}
+
+	public static String getIndexFilename(String base) {
+		return base + ".idx";
+	}
+
+	/** Write the matched listings of every product to a new store. */
+	public static void write(String base, Map<String, Product> productMap) throws IOException {
+		System.out.println("Saving result store: " + base);
+
+		// an old index must not point into the segment being rewritten
+		Files.deleteIfExists(new File(getIndexFilename(base)).toPath());
+
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		FileOutputStream segmentOutput = new FileOutputStream(getSegmentFilename(base));
+		DataOutputStream segment = new DataOutputStream(new BufferedOutputStream(segmentOutput));
+		try {
+			segment.writeInt(SEGMENT_MAGIC);
+			segment.writeInt(VERSION);
+			long offset = SEGMENT_HEADER_SIZE;
+			for(Product product : productMap.values()) {
+				long start = offset;
+				synchronized (product.listings) {
+					for(Listing listing : product.listings) {
+						byte[] bytes = listing.jsonObject.toString().getBytes(UTF8);
+						segment.writeLong(listing.ordinal);
+						segment.writeInt(bytes.length);
+						segment.write(bytes);
+						offset += 12 + bytes.length;
+					}
+					entries.put(product.product_name, new Entry(start, offset - start, product.listings.size()));
+				}
+			}
+			segment.flush();
+			segmentOutput.getFD().sync();
+		} finally {
+			segment.close();
+		}
+
+		// index last, renamed into place once complete
+		File temporary = new File(getIndexFilename(base) + ".tmp");
+		FileOutputStream indexOutput = new FileOutputStream(temporary);
+		DataOutputStream index = new DataOutputStream(new BufferedOutputStream(indexOutput));
+		try {
+			index.writeInt(INDEX_MAGIC);
+			index.writeInt(VERSION);
+			index.writeInt(entries.size());
+			for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+				index.writeUTF(entry.getKey());
+				index.writeLong(entry.getValue().offset);
+				index.writeLong(entry.getValue().size);
+				index.writeInt(entry.getValue().count);
+			}
+			index.flush();
+			indexOutput.getFD().sync();
+		} finally {
+			index.close();
+		}
+		Files.move(temporary.toPath(), new File(getIndexFilename(base)).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Open a store for queries, the index is read into memory. */
+	public static ResultStore open(String base) throws IOException {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(getIndexFilename(base))));
+		try {
+			if(index.readInt() != INDEX_MAGIC || index.readInt() != VERSION) {
+				throw new IOException("Not a result store index: " + getIndexFilename(base));
+			}
+			int count = index.readInt();
+			for(int i = 0; i < count; ++i) {
+				String productName = index.readUTF();
+				entries.put(productName, new Entry(index.readLong(), index.readLong(), index.readInt()));
+			}
+		} finally {
+			index.close();
+		}
+
+		RandomAccessFile segment = new RandomAccessFile(getSegmentFilename(base), "r");
+		if(segment.length() < SEGMENT_HEADER_SIZE || segment.readInt() != SEGMENT_MAGIC || segment.readInt() != VERSION) {
+			segment.close();
+			throw new IOException("Not a result store segment: " + getSegmentFilename(base));
+		}
+		return new ResultStore(segment, entries);
+	}
+
+	/** Product names in the store, in output order. */
+	public Set<String> getProductNames() {
+		return this.entries.keySet();
+	}
+
+	/** Number of listings of the product, 0 if it is not in the store. */
+	public int getCount(String productName) {
+		Entry entry = this.entries.get(productName);
+		return entry == null ? 0 : entry.count;
+	}
+
+	/** Listings of the product in input order, empty if it is not in the store. */
+	public List<JSONObject> getListings(String productName) throws IOException {
+		List<JSONObject> result = new ArrayList<JSONObject>();
+		Entry entry = this.entries.get(productName);
+		if(entry == null || entry.count == 0) {
+			return result;
+		}
+
+		MappedByteBuffer buffer = this.segment.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.size);
+		try {
+			for(int i = 0; i < entry.count; ++i) {
+				buffer.getLong();
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				result.add(new JSONObject(new String(bytes, UTF8)));
+			}
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		return result;
+	}
+
+	public void close() throws IOException {
+		this.segment.close();
+	}
+
+	/** Query entry point, prints the listings of each product named, or every product with its count if none are. */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.out.println("Usage is: java -cp sortable-challenge.jar crs.ResultStore [store base] [product name ...]");
+			return;
+		}
+
+		ResultStore store = open(args[0]);
+		try {
+			if(args.length == 1) {
+				for(String productName : store.getProductNames()) {
+					System.out.println(productName + "\t" + store.getCount(productName));
+				}
+				return;
+			}
+			for(int i = 1; i < args.length; ++i) {
+				for(JSONObject listing : store.getListings(args[i])) {
+					System.out.println(listing.toString());
+				}
+			}
+		} finally {
+			store.close();
+		}
+	}
+}
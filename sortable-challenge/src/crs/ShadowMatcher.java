@@ -0,0 +1,173 @@
+package crs;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+
+/**
+ * Shadow evaluation, answers come from the primary matcher while a sampled fraction of the listings is also matched
+ * by a secondary matcher on a low priority background thread, listings the two disagree on are written to a file.
+ * The shadow queue is bounded and full queue work is dropped, so the primary path never waits on the shadow.
+ */
+public class ShadowMatcher implements ProductMatcher {
+
+	/** Default fraction of the listings to shadow. */
+	public static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+	/** Shadow work waiting before new work is dropped. */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/** Matchers and their names. */
+	private final ProductMatcher primary;
+	private final String primaryName;
+	private final ProductMatcher shadow;
+	private final String shadowName;
+
+	/** Fraction of the listings to shadow. */
+	private final double sampleRate;
+
+	/** Background executor for the shadow lookups. */
+	private final ThreadPoolExecutor executor;
+
+	/** Disagreement file. */
+	private final String filename;
+	private final BufferedWriter writer;
+
+	/** First error writing the disagreement file, reported on close. */
+	private IOException writeError;
+
+	/** Counters */
+	private final AtomicLong sampled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong evaluated = new AtomicLong();
+	private final AtomicLong disagreed = new AtomicLong();
+
+	/** Construct the shadow, the disagreement file is created straight away. */
+	public ShadowMatcher(String primaryName, ProductMatcher primary, String shadowName, ProductMatcher shadow, double sampleRate, String filename) throws IOException {
+		if(sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("Shadow sample rate must be between 0 and 1, got: " + sampleRate);
+		}
+		this.primaryName = primaryName;
+		this.primary = primary;
+		this.shadowName = shadowName;
+		this.shadow = shadow;
+		this.sampleRate = sampleRate;
+		this.filename = filename;
+		this.writer = FileStreams.openWriter(filename);
+
+		// one low priority daemon thread, a full queue drops the work instead of blocking or running it on the caller
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "shadow-matcher");
+						thread.setPriority(Thread.MIN_PRIORITY);
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+						dropped.incrementAndGet();
+					}
+				});
+	}
+
+	/** Primary lookup, the listing is queued for the shadow if it is sampled. */
+	public String lookupProductName(Listing listing) {
+		return match(listing).name;
+	}
+
+	/** Primary match, the listing is queued for the shadow if it is sampled. */
+	public MatchResult match(final Listing listing) {
+		final MatchResult match = this.primary.match(listing);
+		final String result = match.name;
+
+		if(isSampled(listing)) {
+			this.sampled.incrementAndGet();
+			this.executor.execute(new Runnable() {
+				public void run() {
+					compare(listing, result);
+				}
+			});
+		}
+		return match;
+	}
+
+	/** Primary match on the fields, not shadowed (the shadow works on listings). */
+	public MatchResult matchFields(int manufacturerId, String manufacturer, String title) {
+		return this.primary.matchFields(manufacturerId, manufacturer, title);
+	}
+
+	/** Sampling is by listing position, so the same listings are shadowed every run. */
+	private boolean isSampled(Listing listing) {
+		if(this.sampleRate >= 1) {
+			return true;
+		}
+		long hash = (listing.ordinal + 1) * 0x9E3779B97F4A7C15L;
+		return (hash >>> 11) * 0x1.0p-53 < this.sampleRate;
+	}
+
+	/** Shadow lookup, runs on the background thread. */
+	private void compare(Listing listing, String result) {
+		String shadowResult = this.shadow.lookupProductName(listing);
+		this.evaluated.incrementAndGet();
+		if(result == null ? shadowResult == null : result.equals(shadowResult)) {
+			return;
+		}
+		this.disagreed.incrementAndGet();
+
+		// only the shadow thread writes, the lock is for close
+		synchronized (this.writer) {
+			if(this.writeError != null) {
+				return;
+			}
+			try {
+				EngineComparison.toDifference(listing, this.primaryName, result, this.shadowName, shadowResult).write(this.writer);
+				this.writer.write("\n");
+			} catch (JSONException exception) {
+				this.writeError = new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+			} catch (IOException exception) {
+				this.writeError = exception;
+			}
+		}
+	}
+
+	/** Let the queued shadow work finish and close the disagreement file. */
+	public void close() throws IOException {
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException exception) {
+			throw new IOException("Interrupted while finishing the shadow lookups", exception);
+		}
+		synchronized (this.writer) {
+			this.writer.close();
+			if(this.writeError != null) {
+				throw this.writeError;
+			}
+		}
+	}
+
+	/** Reset the primary's counters and the shadow counters. */
+	public void resetCounters() {
+		this.primary.resetCounters();
+		this.sampled.set(0);
+		this.evaluated.set(0);
+		this.dropped.set(0);
+		this.disagreed.set(0);
+	}
+
+	/** Print the primary's counters and the shadow counters. */
+	public void report() {
+		this.primary.report();
+		System.out.println(String.format("Shadow %s: sampled %d listings, %d evaluated, %d dropped (queue full), %d disagree with %s, written to %s",
+				this.shadowName, this.sampled.get(), this.evaluated.get(), this.dropped.get(), this.disagreed.get(), this.primaryName, this.filename));
+	}
+}
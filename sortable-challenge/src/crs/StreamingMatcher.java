@@ -0,0 +1,231 @@
+package crs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streaming listing matcher, the listings file is read in blocks which are parsed and matched on multiple threads,
+ * the matches are then added to the products in input order. Only matched listings are kept in memory.
+ * With a checkpoint the progress is saved periodically and a run can be resumed after a crash.
+ * With a listing output every listing's result is written out as its block finishes instead of being added to the products.
+ */
+public class StreamingMatcher {
+
+	/** Number of lines in a block with grouped matching, larger so the manufacturer groups are too. */
+	private static final int GROUPED_BLOCK_SIZE = 8192;
+
+	/** Matching results are stored here. */
+	private final Map<String, Product> productMap;
+
+	/** Matching engine. */
+	private final ProductMatcher matcher;
+
+	/** Manufacturer and currency dictionaries of the run. */
+	private final ListingDictionaries dictionaries = new ListingDictionaries();
+
+	/** Optional quarantine for bad lines, without it the first bad line throws IOException. */
+	private Quarantine quarantine;
+
+	/** Optional checkpoint for saving progress. */
+	private Checkpoint checkpoint;
+
+	/** Optional listing index to record every listing in. */
+	private ListingIndex index;
+
+	/** Optional per listing output, one json line per listing. */
+	private Writer listingOutput;
+
+	/** Optional collector for the matches, used instead of the products' listings. */
+	private ResultCollector collector;
+
+	/** Optional two phase matching of each block, used instead of the matcher, and the block size. */
+	private GroupedMatcher grouped;
+	private int blockSize = BlockPipeline.BLOCK_SIZE;
+
+	/** Construct the matcher. */
+	public StreamingMatcher(Map<String, Product> productMap, ProductMatcher matcher) {
+		this.productMap = productMap;
+		this.matcher = matcher;
+	}
+
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/** Set the checkpoint, it must already be started or resumed, matching continues from its position. */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/** Record every listing and its match in the index, the run must cover the whole listings file (no resume). */
+	public void setIndex(ListingIndex index) {
+		this.index = index;
+	}
+
+	/** 
+	 * Write a json line for every listing to the writer ({"ordinal", "product_name", "score", "margin"}, product_name is null for no match),
+	 * flushed after each block, instead of adding the matches to the products. Not supported with a checkpoint.
+	 */
+	public void setListingOutput(Writer listingOutput) {
+		this.listingOutput = listingOutput;
+	}
+
+	/** Add the matches to the memory budgeted collector instead of the products' listings. Not supported with a checkpoint. */
+	public void setCollector(ResultCollector collector) {
+		this.collector = collector;
+	}
+
+	/** 
+	 * Match each block with the grouped matcher (which must be built on this matcher) instead of one listing at a time.
+	 * The blocks then run on the grouped matcher's pool, which is not shut down.
+	 */
+	public void setGrouped(GroupedMatcher grouped) {
+		this.grouped = grouped;
+		this.blockSize = grouped == null ? BlockPipeline.BLOCK_SIZE : GROUPED_BLOCK_SIZE;
+	}
+
+	/** Read and match all the listings in the file (from the checkpoint position if there is one). */
+	public void match(final String filename) throws IOException {
+
+		System.out.println("Reading and matching listings file: " + filename);
+
+		// start where the checkpoint left off
+		long offset = 0;
+		long lineNumber = 0;
+		if(this.checkpoint != null) {
+			offset = this.checkpoint.getOffset();
+			lineNumber = this.checkpoint.getLines();
+		}
+
+		BlockPipeline<MatchedBlock> pipeline = new BlockPipeline<MatchedBlock>(this.blockSize, "match") {
+			protected Callable<MatchedBlock> createTask(List<String> lines, long firstLineNumber) {
+				return new BlockMatcher(filename, lines, firstLineNumber);
+			}
+
+			protected void collect(MatchedBlock block, long endOffset, long endLineNumber) throws IOException {
+				StreamingMatcher.this.collect(block, endOffset, endLineNumber);
+			}
+		};
+
+		// grouped blocks run on the grouped matcher's pool, so its phases do not need threads of their own
+		ExecutorService executor = this.grouped == null ? Executors.newFixedThreadPool(Challenge.THREADS) : this.grouped.getPool();
+		InputStream input = FileStreams.openInputStream(filename);
+		LineReader reader = new LineReader(input, offset);
+		try {
+			LineReader.skipFully(input, offset);
+			pipeline.run(reader, lineNumber, executor);
+		} finally {
+			reader.close();
+			if(this.grouped == null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/** Add a block's matches to the products (or write its output), blocks come in input order. */
+	private void collect(MatchedBlock block, long endOffset, long endLineNumber) throws IOException {
+		if(this.listingOutput != null) {
+			this.listingOutput.write(block.output.toString());
+			this.listingOutput.flush();
+			return;
+		}
+
+		for(int i = 0; i < block.listings.size(); ++i) {
+			Product product = block.products.get(i);
+			Listing listing = block.listings.get(i);
+			if(this.collector != null) {
+				this.collector.add(product, listing);
+			} else {
+				product.listings.add(listing);
+			}
+			if(this.checkpoint != null) {
+				this.checkpoint.record(product, listing);
+			}
+		}
+
+		if(this.checkpoint != null) {
+			this.checkpoint.update(endOffset, endLineNumber);
+		}
+	}
+
+	/** Matched listings of one block, in input order. */
+	private static class MatchedBlock {
+		final List<Listing> listings = new ArrayList<Listing>();
+		final List<Product> products = new ArrayList<Product>();
+		final StringBuilder output = new StringBuilder();
+	}
+
+	/** Parses and matches one block of lines. */
+	private class BlockMatcher implements Callable<MatchedBlock> {
+
+		private final String filename;
+		private final List<String> lines;
+		private final long firstLineNumber;
+
+		public BlockMatcher(String filename, List<String> lines, long firstLineNumber) {
+			this.filename = filename;
+			this.lines = lines;
+			this.firstLineNumber = firstLineNumber;
+		}
+
+		public MatchedBlock call() throws IOException {
+			MatchedBlock result = new MatchedBlock();
+			List<Listing> listings = dictionaries.reader.parseBlock(this.filename, this.lines, this.firstLineNumber, quarantine);
+			MatchResult[] matches = grouped == null ? null : grouped.match(listings);
+			for(int i = 0; i < listings.size(); ++i) {
+				Listing listing = listings.get(i);
+
+				// match product name
+				MatchResult match = matches == null ? matcher.match(listing) : matches[i];
+				if(index != null) {
+					index.record(listing, match.name);
+				}
+				if(listingOutput != null) {
+					writeListing(result.output, listing, match);
+					continue;
+				}
+				if(match.name == null) {
+					continue;
+				}
+
+				Product product = productMap.get(match.name);
+				if(product == null) {
+					continue;
+				}
+
+				result.listings.add(listing);
+				result.products.add(product);
+			}
+			return result;
+		}
+	}
+
+	/** Add the listing's json line to the block output. */
+	static void writeListing(StringBuilder output, Listing listing, MatchResult match) throws IOException {
+		JSONObject record = new JSONObject();
+		try {
+			record.put("ordinal", listing.ordinal);
+			record.put("product_name", match.name == null ? JSONObject.NULL : match.name);
+			record.put("score", round(match.score));
+			record.put("margin", round(match.margin));
+		} catch (JSONException exception) {
+			throw new IOException("Invalid JSON format: " + exception.getMessage(), exception);
+		}
+		output.append(record.toString()).append('\n');
+	}
+
+	/** Scores to 4 decimal places, the float noise is not useful downstream. */
+	private static double round(float value) {
+		return Math.round(value * 10000.0) / 10000.0;
+	}
+}
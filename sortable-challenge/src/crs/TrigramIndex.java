@@ -0,0 +1,307 @@
+package crs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Character trigram index over the canonical models (cleaned, spaces removed) of one manufacturer, used instead of
+ * expanding every model into its spacing variants ("eos 1d mark iv", "eos1d mark iv", "eos 1dmark iv", ... each again with the family)
+ * up front. The keyword lookup only holds the models as they are (the model and family keywords keep their variants, see ModelLookup),
+ * and a title is re-split at lookup time: the models whose trigrams all occur in the title (spaces removed) are candidates,
+ * and a candidate spelled out across title word boundaries in a different spacing has those title words replaced by the model's words.
+ * Postings are plain int arrays in an open addressing table, so the index stays small for large catalogs.
+ */
+public class TrigramIndex {
+
+	/** Models in the index: the cleaned model and its canonical form. */
+	private final String[] models;
+	private final String[] canonicals;
+
+	/** Distinct trigrams of each model. */
+	private final int[] trigramCounts;
+
+	/** Open addressing table of trigram keys (0 is empty) and their postings (model ids, ascending), slots are the top bits of the hashed key. */
+	private final int[] keys;
+	private final int[][] postings;
+	private final int shift;
+	private int postingCount;
+
+	/** Hit counts of each thread, all 0 between lookups (only the touched models are counted and reset). */
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/** Counter */
+	private final AtomicInteger resplitCount = new AtomicInteger();
+
+	/** Construct the index over the cleaned models, models under 3 characters (spaces removed) have no trigram and are left out. */
+	public TrigramIndex(Collection<String> models) {
+		List<String> indexed = new ArrayList<String>();
+		for(String model : new LinkedHashSet<String>(models)) {
+			if(model.replace(" ", "").length() >= 3) {
+				indexed.add(model);
+			}
+		}
+		this.models = indexed.toArray(new String[indexed.size()]);
+		this.canonicals = new String[this.models.length];
+		this.trigramCounts = new int[this.models.length];
+
+		List<int[]> modelTrigrams = new ArrayList<int[]>();
+		int total = 0;
+		for(int id = 0; id < this.models.length; ++id) {
+			this.canonicals[id] = this.models[id].replace(" ", "");
+			int[] trigrams = distinctTrigrams(this.canonicals[id]);
+			this.trigramCounts[id] = trigrams.length;
+			modelTrigrams.add(trigrams);
+			total += trigrams.length;
+		}
+
+		// table at most half full
+		int bits = 4;
+		while(1 << bits < total * 2) {
+			++bits;
+		}
+		int capacity = 1 << bits;
+		this.shift = 32 - bits;
+		this.keys = new int[capacity];
+		this.postings = new int[capacity][];
+
+		int[] sizes = new int[capacity];
+		for(int[] trigrams : modelTrigrams) {
+			for(int trigram : trigrams) {
+				sizes[slot(trigram, true)] += 1;
+			}
+		}
+		int[] filled = new int[capacity];
+		for(int id = 0; id < this.models.length; ++id) {
+			for(int trigram : modelTrigrams.get(id)) {
+				int slot = slot(trigram, false);
+				if(this.postings[slot] == null) {
+					this.postings[slot] = new int[sizes[slot]];
+				}
+				this.postings[slot][filled[slot]++] = id;
+				this.postingCount += 1;
+			}
+		}
+	}
+
+	/** Slot of the trigram key, claimed for it if it is new and add is set. */
+	private int slot(int key, boolean add) {
+		int mask = this.keys.length - 1;
+		int slot = (key * 0x9E3779B1) >>> this.shift;
+		while(this.keys[slot] != key) {
+			if(this.keys[slot] == 0) {
+				if(add) {
+					this.keys[slot] = key;
+				}
+				return add ? slot : -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/** Trigram key of three characters, never 0 (characters above 1023 share keys, candidates are verified anyway). */
+	private static int trigram(char first, char second, char third) {
+		return ((first & 0x3ff) << 20 | (second & 0x3ff) << 10 | (third & 0x3ff)) + 1;
+	}
+
+	private static int[] distinctTrigrams(String string) {
+		int[] trigrams = new int[Math.max(0, string.length() - 2)];
+		for(int i = 0; i < trigrams.length; ++i) {
+			trigrams[i] = trigram(string.charAt(i), string.charAt(i + 1), string.charAt(i + 2));
+		}
+		Arrays.sort(trigrams);
+		int count = 0;
+		for(int i = 0; i < trigrams.length; ++i) {
+			if(count == 0 || trigrams[count - 1] != trigrams[i]) {
+				trigrams[count++] = trigrams[i];
+			}
+		}
+		return Arrays.copyOf(trigrams, count);
+	}
+
+	/** A model spelled out in the title: title words [first, end) are to be replaced by the model. */
+	private static class Resplit {
+		final int first;
+		final int end;
+		final String model;
+
+		Resplit(int first, int end, String model) {
+			this.first = first;
+			this.end = end;
+			this.model = model;
+		}
+	}
+
+	/** Trigram hit counts by model id, and the ids touched in a lookup. */
+	private static class Scratch {
+		int[] counts = new int[0];
+		int[] touched = new int[0];
+
+		void ensureCapacity(int models) {
+			if(this.counts.length < models) {
+				this.counts = new int[models];
+				this.touched = new int[models];
+			}
+		}
+	}
+
+	/** Longest first, so the longer of two overlapping models wins. */
+	private static final Comparator<Resplit> LONGEST_FIRST = new Comparator<Resplit>() {
+		public int compare(Resplit a, Resplit b) {
+			return (b.end - b.first) - (a.end - a.first);
+		}
+	};
+
+	/** The title with every model it spells out in a different spacing re-split as the model, the title itself if there is none. */
+	public String resplit(String title) {
+		if(this.models.length == 0) {
+			return title;
+		}
+
+		// title with the spaces removed, the offset each word starts at in it, and where each word starts and ends in the title
+		char[] joined = new char[title.length()];
+		int length = 0;
+		int[] starts = new int[title.length() / 2 + 2];
+		int[] titleStarts = new int[starts.length];
+		int[] titleEnds = new int[starts.length];
+		int wordCount = 0;
+		boolean space = true;
+		for(int i = 0; i < title.length(); ++i) {
+			char c = title.charAt(i);
+			if(c == ' ') {
+				if(!space) {
+					titleEnds[wordCount - 1] = i;
+				}
+				space = true;
+				continue;
+			}
+			if(space) {
+				titleStarts[wordCount] = i;
+				starts[wordCount++] = length;
+				space = false;
+			}
+			joined[length++] = c;
+		}
+		if(!space) {
+			titleEnds[wordCount - 1] = title.length();
+		}
+		starts[wordCount] = length;
+
+		// count the trigram hits of the models the title's trigrams touch, then keep those with all their trigrams hit
+		Scratch scratch = SCRATCH.get();
+		scratch.ensureCapacity(this.models.length);
+		int[] counts = scratch.counts;
+		int[] touched = scratch.touched;
+		int touchedCount = 0;
+		for(int i = 0; i + 3 <= length; ++i) {
+			int slot = slot(trigram(joined[i], joined[i + 1], joined[i + 2]), false);
+			if(slot >= 0) {
+				for(int id : this.postings[slot]) {
+					if(counts[id]++ == 0) {
+						touched[touchedCount++] = id;
+					}
+				}
+			}
+		}
+		int candidateCount = 0;
+		for(int i = 0; i < touchedCount; ++i) {
+			int id = touched[i];
+			if(counts[id] >= this.trigramCounts[id]) {
+				touched[candidateCount++] = id;
+			}
+			counts[id] = 0;
+		}
+		if(candidateCount == 0) {
+			return title;
+		}
+		Arrays.sort(touched, 0, candidateCount);
+
+		// verify the candidates: the model must start and end at word boundaries, and be split differently
+		String joinedTitle = new String(joined, 0, length);
+		List<Resplit> resplits = null;
+		for(int candidate = 0; candidate < candidateCount; ++candidate) {
+			int id = touched[candidate];
+			String canonical = this.canonicals[id];
+			for(int offset = joinedTitle.indexOf(canonical); offset >= 0; offset = joinedTitle.indexOf(canonical, offset + 1)) {
+				int first = Arrays.binarySearch(starts, 0, wordCount + 1, offset);
+				int end = Arrays.binarySearch(starts, 0, wordCount + 1, offset + canonical.length());
+				if(first < 0 || end < 0) {
+					continue;
+				}
+				String model = this.models[id];
+				if(titleEnds[end - 1] - titleStarts[first] == model.length() && title.regionMatches(titleStarts[first], model, 0, model.length())) {
+					// same spacing already
+					continue;
+				}
+				if(resplits == null) {
+					resplits = new ArrayList<Resplit>();
+				}
+				resplits.add(new Resplit(first, end, this.models[id]));
+			}
+		}
+		if(resplits == null) {
+			return title;
+		}
+
+		// replace the words, the longest of overlapping models wins
+		Collections.sort(resplits, LONGEST_FIRST);
+		List<String> words = Challenge.split(title);
+		String[] replaced = words.toArray(new String[words.size()]);
+		boolean[] used = new boolean[words.size()];
+		for(Resplit resplit : resplits) {
+			boolean free = true;
+			for(int i = resplit.first; i < resplit.end; ++i) {
+				free &= !used[i];
+			}
+			if(!free) {
+				continue;
+			}
+			for(int i = resplit.first; i < resplit.end; ++i) {
+				used[i] = true;
+				replaced[i] = null;
+			}
+			replaced[resplit.first] = resplit.model;
+		}
+		this.resplitCount.incrementAndGet();
+
+		StringBuilder result = new StringBuilder();
+		for(String word : replaced) {
+			if(word != null) {
+				if(result.length() > 0) {
+					result.append(' ');
+				}
+				result.append(word);
+			}
+		}
+		return result.toString();
+	}
+
+	/** Number of models indexed, and of postings. */
+	public int getModelCount() {
+		return this.models.length;
+	}
+
+	public int getPostingCount() {
+		return this.postingCount;
+	}
+
+	/** Reset the re-split counter. */
+	public void resetCounters() {
+		this.resplitCount.set(0);
+	}
+
+	/** Number of titles re-split. */
+	public int getResplitCount() {
+		return this.resplitCount.get();
+	}
+}
@@ -0,0 +1,113 @@
+package crs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interning dictionary for values repeated across many listings (manufacturer, currency), each distinct value is kept once
+ * and gets a small int id. Thread safe for the parallel loader: values are spread over lock stripes so threads interning
+ * different values rarely wait on each other, and looking up a value by id takes no lock.
+ * Ids are never reused, the dictionary only grows up to its capacity, after which new values get no id (-1).
+ */
+public class ValueDictionary {
+
+	/** Number of lock stripes (a power of 2). */
+	private static final int STRIPES = 16;
+
+	/** Values in a chunk of the id table (a power of 2). */
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/** Ids of the values in a stripe, guarded by the map itself. */
+	private final Map<String, Integer>[] stripes;
+
+	/** Most distinct values. */
+	private final int capacity;
+
+	/** Next id. */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/** Values by id, in chunks so the table grows without copying the values. */
+	private volatile String[][] chunks = new String[16][];
+
+	/** Construct an empty dictionary without a capacity. */
+	public ValueDictionary() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/** Construct an empty dictionary holding at most capacity values. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ValueDictionary(int capacity) {
+		this.capacity = capacity;
+		this.stripes = new Map[STRIPES];
+		for(int i = 0; i < STRIPES; ++i) {
+			this.stripes[i] = new HashMap<String, Integer>();
+		}
+	}
+
+	/** Id of the value, added if it is new, -1 if it is new and the dictionary is full. */
+	public int intern(String value) {
+		int hash = value.hashCode();
+		Map<String, Integer> stripe = this.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+		synchronized (stripe) {
+			Integer id = stripe.get(value);
+			if(id == null) {
+				id = nextId();
+				if(id < 0) {
+					return -1;
+				}
+				store(id, value);
+				stripe.put(value, id);
+			}
+			return id;
+		}
+	}
+
+	/** Take the next id, -1 once the capacity is reached (other stripes take ids concurrently). */
+	private int nextId() {
+		while(true) {
+			int id = this.next.get();
+			if(id >= this.capacity) {
+				return -1;
+			}
+			if(this.next.compareAndSet(id, id + 1)) {
+				return id;
+			}
+		}
+	}
+
+	/** Keep the value in the id table, the table only grows under the dictionary lock. */
+	private void store(int id, String value) {
+		int chunk = id >>> CHUNK_BITS;
+		String[][] chunks = this.chunks;
+		if(chunk >= chunks.length || chunks[chunk] == null) {
+			synchronized (this) {
+				chunks = this.chunks;
+				if(chunk >= chunks.length) {
+					String[][] grown = new String[Math.max(chunks.length * 2, chunk + 1)][];
+					System.arraycopy(chunks, 0, grown, 0, chunks.length);
+					chunks = grown;
+				}
+				if(chunks[chunk] == null) {
+					chunks[chunk] = new String[CHUNK_SIZE];
+				}
+				this.chunks = chunks;
+			}
+		}
+		chunks[chunk][id & (CHUNK_SIZE - 1)] = value;
+	}
+
+	/**
+	 * Value of the id. The id must come from intern, and reach this thread through something
+	 * that publishes it safely (the listing holding it was handed over through a queue or future).
+	 */
+	public String get(int id) {
+		return this.chunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+	}
+
+	/** Number of distinct values. */
+	public int size() {
+		return this.next.get();
+	}
+}
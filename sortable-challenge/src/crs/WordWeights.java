@@ -0,0 +1,137 @@
+package crs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Corpus derived weights of the keyword words, compiled into the model lookups instead of a hand kept stopword list.
+ * The document frequency of each word is counted over the products (a product's model and family words are a document)
+ * and optionally a sample of listing titles, each corpus on its own, and a word's share is its larger share of the two.
+ * Words above the stopword share are stopwords: dropped from the lookups like Challenge.IGNORABLE_WORDS, so a title word
+ * that is one no longer fans out to every keyword it is in. Words within DOWN_WEIGHT_RANGE of the stopword share
+ * get an IDF weight, falling from 1 to 0 (log scale) as the share reaches the stopword share.
+ */
+public class WordWeights {
+
+	/** Default share of the documents above which a word is a stopword. */
+	public static final float DEFAULT_STOPWORD_SHARE = 0.05f;
+
+	/** Default number of listing titles read for the sample. */
+	public static final int DEFAULT_SAMPLE_SIZE = 2000;
+
+	/** Words less common than the stopword share divided by this keep their full weight. */
+	private static final float DOWN_WEIGHT_RANGE = 3;
+
+	/** Weights of the words below 1 (stopwords are 0), words not in here have weight 1. */
+	private final Map<String, Float> weights = new HashMap<String, Float>();
+
+	/** Stopwords, in order. */
+	private final Set<String> stopwords = new TreeSet<String>();
+
+	/** Documents counted. */
+	private final int productCount;
+	private final int titleCount;
+
+	/** Count the document frequencies over the products and the cleaned title sample (may be empty), and derive the weights. */
+	public WordWeights(List<Product> products, List<String> titles, float stopwordShare) {
+		if(stopwordShare <= 0 || stopwordShare >= 1) {
+			throw new IllegalArgumentException("Stopword share must be above 0 and below 1, got: " + stopwordShare);
+		}
+		List<String> documents = new ArrayList<String>();
+		for(Product product : products) {
+			documents.add(Challenge.clean(product.model) + " " + Challenge.clean(product.family));
+		}
+		this.productCount = documents.size();
+		this.titleCount = titles.size();
+
+		// a word's share is its larger share of the two corpora, a small sample must not hide a word every product has
+		Map<String, Float> shares = documentShares(documents);
+		for(Map.Entry<String, Float> entry : documentShares(titles).entrySet()) {
+			Float share = shares.get(entry.getKey());
+			if(share == null || share < entry.getValue()) {
+				shares.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		double range = Math.log(DOWN_WEIGHT_RANGE);
+		for(Map.Entry<String, Float> entry : shares.entrySet()) {
+			float share = entry.getValue();
+			if(share > stopwordShare) {
+				this.stopwords.add(entry.getKey());
+				this.weights.put(entry.getKey(), 0f);
+			} else if(share * DOWN_WEIGHT_RANGE > stopwordShare) {
+				this.weights.put(entry.getKey(), (float)(Math.log(stopwordShare / share) / range));
+			}
+		}
+	}
+
+	/** Share of the documents each word is in. */
+	private static Map<String, Float> documentShares(List<String> documents) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Set<String> seen = new HashSet<String>();
+		for(String document : documents) {
+			seen.clear();
+			for(String word : Challenge.split(document)) {
+				if(seen.add(word)) {
+					Integer count = counts.get(word);
+					counts.put(word, count == null ? 1 : count + 1);
+				}
+			}
+		}
+		Map<String, Float> result = new HashMap<String, Float>();
+		for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+			result.put(entry.getKey(), entry.getValue() / (float)documents.size());
+		}
+		return result;
+	}
+
+	/** Read the titles of the first size listings of a listings file (cleaned), throws IOException for file and json format errors. */
+	public static List<String> loadTitleSample(String filename, int size) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = FileStreams.openReader(filename);
+		try {
+			for(String line = reader.readLine(); line != null && lines.size() < size; line = reader.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		List<String> result = new ArrayList<String>();
+		for(Listing listing : Listing.READER.parseBlock(filename, lines, 1, null)) {
+			result.add(Challenge.clean(listing.title));
+		}
+		return result;
+	}
+
+	/** Weight of the word, 0 for a stopword and 1 for a word that is not common. */
+	public float getWeight(String word) {
+		Float weight = this.weights.get(word);
+		return weight == null ? 1f : weight;
+	}
+
+	/** The derived stopwords, in order. */
+	public Set<String> getStopwords() {
+		return this.stopwords;
+	}
+
+	/** Number of words with a weight between 0 and 1. */
+	public int getDownWeightedCount() {
+		return this.weights.size() - this.stopwords.size();
+	}
+
+	/** Number of products and of sample titles counted. */
+	public int getProductCount() {
+		return this.productCount;
+	}
+
+	public int getTitleCount() {
+		return this.titleCount;
+	}
+}